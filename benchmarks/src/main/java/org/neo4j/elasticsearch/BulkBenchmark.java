@@ -0,0 +1,69 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.Delete;
+import io.searchbox.core.Index;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the body of a bulk request from index actions with rendered sources and some deletes, as
+ * Jest does before sending it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkBenchmark {
+
+    @Param({"10", "1000"})
+    public int actions;
+
+    private final Gson gson = new Gson();
+    private List<BulkableAction> bulkActions;
+
+    @Setup
+    public void setUp() {
+        bulkActions = new ArrayList<>();
+        for (int i = 0; i < actions; i++) {
+            String id = String.valueOf(i);
+            if (i % 10 == 9) {
+                bulkActions.add(new Delete.Builder(id).index("index").type("Label").build());
+            } else {
+                String source = "{\"id\":\"" + id + "\",\"labels\":[\"Label\"],\"name\":\"name " + i + "\",\"count\":" + i + "}";
+                bulkActions.add(new Index.Builder(source).index("index").type("Label").id(id).build());
+            }
+        }
+    }
+
+    @Benchmark
+    public String buildBody() {
+        return new Bulk.Builder().addAction(bulkActions).build().getData(gson);
+    }
+
+    @Benchmark
+    public long estimateSize() {
+        long size = 0;
+        for (BulkableAction action : bulkActions) {
+            size += ElasticSearchBulkQueue.estimatedSize(action, gson);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,152 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a transaction that creates or updates nodes, with the event handler registered.
+ *
+ * With {@code specs=0} no handler is registered, which is the baseline the overhead of the integration
+ * is measured against. With {@code dispatch=queue} the actions go into a bulk queue that discards them, so
+ * only the work in the commit path is measured, with {@code dispatch=sync} the bulk request is also rendered
+ * and answered by an in-memory client in the committing thread. With {@code workers} above 0 the documents are
+ * rendered by render workers, so the committing thread only captures the changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommitBenchmark {
+
+    @Param({"1", "100"})
+    public int nodes;
+
+    @Param({"1", "10"})
+    public int properties;
+
+    @Param({"1", "4"})
+    public int labels;
+
+    @Param({"0", "1", "8"})
+    public int specs;
+
+    @Param({"queue", "sync"})
+    public String dispatch;
+
+    @Param({"0", "4"})
+    public int workers;
+
+    private GraphDatabaseService db;
+    private ElasticSearchEventHandler handler;
+    private Label[] nodeLabels;
+    private String[] keys;
+    private Node[] existing;
+    private int counter;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        nodeLabels = new Label[labels];
+        for (int i = 0; i < labels; i++) {
+            nodeLabels[i] = Label.label("L" + i);
+        }
+        keys = new String[properties];
+        for (int i = 0; i < properties; i++) {
+            keys[i] = "p" + i;
+        }
+        if (specs > 0) {
+            ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                    ElasticSearchIndexSpecParser.parseIndexSpec(indexSpec()), true, true);
+            handler = new ElasticSearchEventHandler(new StubJestClient(), indexSettings, null);
+            handler.setUseAsyncJest(false);
+            handler.setStatementBridge(((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class));
+            if (workers > 0) {
+                handler.setRenderWorkers(db, workers);
+            }
+            if (dispatch.equals("queue")) {
+                handler.setBulkQueue(new ElasticSearchBulkQueue((bulk, since) -> {}, 1000, 5 * 1024 * 1024, 1000));
+            }
+            db.registerTransactionEventHandler(handler);
+        }
+        existing = new Node[nodes];
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < nodes; i++) {
+                existing[i] = createNode();
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * One index per spec, spread over the labels, each indexing all properties of the nodes.
+     */
+    private String indexSpec() {
+        StringBuilder spec = new StringBuilder();
+        for (int i = 0; i < specs; i++) {
+            if (i > 0) spec.append(',');
+            spec.append("index-").append(i).append(":L").append(i % labels).append('(').append(String.join(",", keys)).append(')');
+        }
+        return spec.toString();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        if (handler != null) {
+            db.unregisterTransactionEventHandler(handler);
+            handler.shutdown();
+            handler = null;
+        }
+        db.shutdown();
+    }
+
+    private Node createNode() {
+        Node node = db.createNode(nodeLabels);
+        for (String key : keys) {
+            node.setProperty(key, "value " + key);
+        }
+        return node;
+    }
+
+    @Benchmark
+    public void createNodes() {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < nodes; i++) {
+                createNode();
+            }
+            tx.success();
+        }
+    }
+
+    @Benchmark
+    public void updateNodes() {
+        int value = counter++;
+        try (Transaction tx = db.beginTx()) {
+            for (Node node : existing) {
+                node.setProperty(keys[value % keys.length], value);
+            }
+            tx.success();
+        }
+    }
+}
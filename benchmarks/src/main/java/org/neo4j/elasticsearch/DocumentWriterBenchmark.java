@@ -0,0 +1,88 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of a node document, for all properties of the node and for the half of them an index spec names.
+ * The node has string, number and array properties in turn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentWriterBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int properties;
+
+    private GraphDatabaseService db;
+    private Transaction tx;
+    private Node node;
+    private String[] keys;
+    private ElasticSearchDocumentWriter writer;
+
+    @Setup
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Set<String> keys = new HashSet<>();
+        try (Transaction tx = db.beginTx()) {
+            node = db.createNode(Label.label("Label"), Label.label("Other"));
+            for (int i = 0; i < properties; i++) {
+                node.setProperty("p" + i, value(i));
+                if (i % 2 == 0) keys.add("p" + i);
+            }
+            tx.success();
+        }
+        this.keys = keys.toArray(new String[keys.size()]);
+        writer = new ElasticSearchDocumentWriter(new ElasticSearchIndexSettings(Collections.emptyMap(), true, true));
+        // property reads need a transaction of the benchmark thread
+        tx = db.beginTx();
+    }
+
+    private static Object value(int i) {
+        switch (i % 3) {
+            case 0: return "a \"quoted\" value " + i;
+            case 1: return i * 1000L;
+            default: return new String[]{"first", "second", String.valueOf(i)};
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        tx.close();
+        db.shutdown();
+    }
+
+    @Benchmark
+    public String renderAll() {
+        return writer.render(node, null);
+    }
+
+    @Benchmark
+    public String renderSpecProperties() {
+        return writer.render(node, keys);
+    }
+}
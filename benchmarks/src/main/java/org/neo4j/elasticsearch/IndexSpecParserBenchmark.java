@@ -0,0 +1,50 @@
+package org.neo4j.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of an index spec with a number of entries of five properties each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexSpecParserBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int entries;
+
+    private String spec;
+
+    @Setup
+    public void setUp() {
+        StringBuilder spec = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) spec.append(',');
+            spec.append("index_").append(i).append(":Label").append(i).append("(name,title,description,created,tags)");
+        }
+        this.spec = spec.toString();
+    }
+
+    @Benchmark
+    public Map<String, List<ElasticSearchIndexSpec>> parseIndexSpec() throws ParseException {
+        return ElasticSearchIndexSpecParser.parseIndexSpec(spec);
+    }
+}
@@ -0,0 +1,63 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Jest client that stays in memory: it renders the request body like a real client would and answers
+ * every bulk item with success, without any network.
+ */
+public class StubJestClient implements JestClient {
+    private final Gson gson = new Gson();
+
+    @Override
+    public <T extends JestResult> T execute(Action<T> action) {
+        String body = action.getData(gson);
+        return action.createNewElasticSearchResult(response(body), 200, "OK", gson);
+    }
+
+    @Override
+    public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<? super T> handler) {
+        handler.completed(execute(action));
+    }
+
+    /**
+     * Echoes the action lines of a bulk body as successful items, sources follow every action line but deletes.
+     */
+    private String response(String body) {
+        JsonArray items = new JsonArray();
+        if (body != null) {
+            String[] lines = body.split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                JsonObject line = gson.fromJson(lines[i], JsonObject.class);
+                Map.Entry<String, JsonElement> action = line.entrySet().iterator().next();
+                JsonObject item = action.getValue().getAsJsonObject();
+                item.addProperty("status", 200);
+                items.add(line);
+                if (!action.getKey().equals("delete")) i++;
+            }
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("took", 1);
+        response.addProperty("errors", false);
+        response.add("items", items);
+        return gson.toJson(response);
+    }
+
+    @Override
+    public void shutdownClient() {
+    }
+
+    @Override
+    public void setServers(Set<String> servers) {
+    }
+}
@@ -0,0 +1,107 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.http.JestHttpClient;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Creates Jest clients that send the request bodies gzip compressed.
+ *
+ * The request compression of Jest itself streams the body, which the async client can't send, so the
+ * bodies are compressed into a buffer before the request is handed to the http client instead.
+ */
+public class CompressingJestClientFactory extends JestClientFactory {
+    private final boolean compression;
+
+    public CompressingJestClientFactory(boolean compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public JestClient getObject() {
+        JestHttpClient client = (JestHttpClient) super.getObject();
+        if (compression) client.setAsyncClient(new CompressingAsyncClient(client.getAsyncClient()));
+        return client;
+    }
+
+    @Override
+    protected HttpClientBuilder configureHttpClient(HttpClientBuilder builder) {
+        // first, so the content length is set for the compressed body
+        return compression ? builder.addInterceptorFirst((HttpRequest request, HttpContext context) -> compress(request)) : builder;
+    }
+
+    static void compress(HttpRequest request) throws IOException {
+        if (!(request instanceof HttpEntityEnclosingRequest)) return;
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity == null || entity.getContentEncoding() != null) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(64, entity.getContentLength() / 4));
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            entity.writeTo(out);
+        }
+        ByteArrayEntity compressed = new ByteArrayEntity(bytes.toByteArray());
+        compressed.setContentType(entity.getContentType());
+        compressed.setContentEncoding("gzip");
+        ((HttpEntityEnclosingRequest) request).setEntity(compressed);
+    }
+
+    /**
+     * The async client takes the body to send from the request before any interceptor runs, so it is
+     * compressed before the request is executed.
+     */
+    private static class CompressingAsyncClient extends CloseableHttpAsyncClient {
+        private final CloseableHttpAsyncClient client;
+
+        CompressingAsyncClient(CloseableHttpAsyncClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return client.isRunning();
+        }
+
+        @Override
+        public void start() {
+            client.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            client.close();
+        }
+
+        @Override
+        public Future<HttpResponse> execute(HttpUriRequest request, FutureCallback<HttpResponse> callback) {
+            try {
+                compress(request);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return client.execute(request, callback);
+        }
+
+        @Override
+        public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer, HttpAsyncResponseConsumer<T> responseConsumer,
+                                     HttpContext context, FutureCallback<T> callback) {
+            return client.execute(requestProducer, responseConsumer, context, callback);
+        }
+    }
+}
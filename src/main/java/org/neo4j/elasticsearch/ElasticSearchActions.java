@@ -0,0 +1,70 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import org.neo4j.collection.primitive.Primitive;
+import org.neo4j.collection.primitive.PrimitiveLongObjectMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The actions of one transaction, at most one per document, used to collapse several actions for the
+ * same document into the last one.
+ *
+ * Documents are identified by the ordinal of their index and the id of the node or relationship, so no key
+ * objects or id strings are created to track them. The maps of the indexes are only created when used.
+ */
+class ElasticSearchActions {
+    private final PrimitiveLongObjectMap<BulkableAction>[] indexes;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public ElasticSearchActions(int indexes) {
+        this.indexes = new PrimitiveLongObjectMap[indexes];
+    }
+
+    private PrimitiveLongObjectMap<BulkableAction> index(int index) {
+        PrimitiveLongObjectMap<BulkableAction> actions = indexes[index];
+        if (actions == null) {
+            actions = Primitive.longObjectMap();
+            indexes[index] = actions;
+        }
+        return actions;
+    }
+
+    public void put(int index, long id, BulkableAction action) {
+        if (index(index).put(id, action) == null) size++;
+    }
+
+    public void putIfAbsent(int index, long id, BulkableAction action) {
+        if (!contains(index, id)) put(index, id, action);
+    }
+
+    public boolean contains(int index, long id) {
+        return indexes[index] != null && indexes[index].containsKey(id);
+    }
+
+    public BulkableAction get(int index, long id) {
+        return indexes[index] == null ? null : indexes[index].get(id);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public List<BulkableAction> values() {
+        List<BulkableAction> values = new ArrayList<>(size);
+        for (PrimitiveLongObjectMap<BulkableAction> actions : indexes) {
+            if (actions == null) continue;
+            actions.visitEntries((id, action) -> {
+                values.add(action);
+                return false;
+            });
+        }
+        return values;
+    }
+}
@@ -0,0 +1,196 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Update;
+import io.searchbox.params.Parameters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects bulkable actions across transactions and hands them on as one bulk
+ * when either the action count or the estimated payload size is reached, or
+ * when the oldest pending action has waited for the flush interval.
+ *
+ * Actions for the same document replace each other, so only the last one is sent. Partial updates
+ * are merged with each other instead, and kept after a pending full action for the document.
+ * A document is identified by its index, id and routing, so the delete of a document moved to another routing
+ * is sent. An action that replaces another is sent in the place of the later one, after the actions that were
+ * pending before it, so e.g. a delete with one routing is never sent after the index with the same routing.
+ */
+class ElasticSearchBulkQueue {
+    private final static Logger logger = Logger.getLogger(ElasticSearchBulkQueue.class.getName());
+    // rough size of the action/metadata line that precedes each source in a bulk body
+    private final static int ACTION_LINE_SIZE = 64;
+
+    // gets each bulk with the commit time of its oldest action
+    private final BiConsumer<Collection<BulkableAction>, Long> submitter;
+    private final int maxActions;
+    private final long maxBytes;
+    private final long flushInterval;
+    private final ScheduledExecutorService scheduler;
+    // removed properties are sent as nulls in partial updates
+    private final Gson gson = new GsonBuilder().serializeNulls().create();
+
+    private Map<Object, BulkableAction> pending = new LinkedHashMap<>();
+    private long pendingBytes;
+    private long pendingSince;
+
+    public ElasticSearchBulkQueue(BiConsumer<Collection<BulkableAction>, Long> submitter, int maxActions, long maxBytes, long flushInterval) {
+        this.submitter = submitter;
+        this.maxActions = Math.max(1, maxActions);
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.flushInterval = flushInterval;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "elasticsearch-bulk-queue");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void add(Collection<BulkableAction> actions) {
+        List<Collection<BulkableAction>> ready = new ArrayList<>();
+        List<Long> readySince = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            boolean wasEmpty = pending.isEmpty();
+            for (BulkableAction action : actions) {
+                IndexId id = new IndexId(action.getIndex(), action.getId(), routing(action));
+                Object key = id;
+                if (action instanceof Update) {
+                    key = new PartialUpdate(id);
+                    BulkableAction previous = pending.get(key);
+                    if (previous != null) action = merge(previous, action);
+                } else {
+                    BulkableAction partial = pending.remove(new PartialUpdate(id));
+                    if (partial != null) pendingBytes -= size(partial);
+                }
+                if (pending.isEmpty()) pendingSince = now;
+                BulkableAction previous = pending.remove(key);
+                pending.put(key, action);
+                if (previous != null) pendingBytes -= size(previous);
+                pendingBytes += size(action);
+                if (pending.size() >= maxActions || pendingBytes >= maxBytes) {
+                    readySince.add(pendingSince);
+                    ready.add(drain());
+                }
+            }
+            if (wasEmpty && !pending.isEmpty()) {
+                scheduler.schedule(this::flush, flushInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+        for (int i = 0; i < ready.size(); i++) {
+            submitter.accept(ready.get(i), readySince.get(i));
+        }
+    }
+
+    public void flush() {
+        Collection<BulkableAction> bulk;
+        long since;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            since = pendingSince;
+            bulk = drain();
+        }
+        try {
+            submitter.accept(bulk, since);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error flushing ElasticSearch bulk queue ", e);
+        }
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        flush();
+    }
+
+    private Collection<BulkableAction> drain() {
+        Collection<BulkableAction> bulk = pending.values();
+        pending = new LinkedHashMap<>();
+        pendingBytes = 0;
+        return bulk;
+    }
+
+    /**
+     * Merges two partial updates of the same document, the properties of the later one win.
+     */
+    private BulkableAction merge(BulkableAction earlier, BulkableAction later) {
+        JsonObject doc = gson.fromJson(earlier.getData(gson), JsonObject.class);
+        merge(doc, gson.fromJson(later.getData(gson), JsonObject.class));
+        Update.Builder builder = new Update.Builder(gson.toJson(doc))
+                .index(later.getIndex())
+                .type(later.getType())
+                .id(later.getId());
+        for (String parameter : Parameters.ACCEPTED_IN_BULK) {
+            Collection<Object> values = later.getParameter(parameter);
+            if (values != null && !values.isEmpty()) builder.setParameter(parameter, values.iterator().next());
+        }
+        return builder.build();
+    }
+
+    private static void merge(JsonObject target, JsonObject source) {
+        for (Map.Entry<String, JsonElement> entry : source.entrySet()) {
+            JsonElement existing = target.get(entry.getKey());
+            if (existing != null && existing.isJsonObject() && entry.getValue().isJsonObject()) {
+                merge(existing.getAsJsonObject(), entry.getValue().getAsJsonObject());
+            } else {
+                target.add(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static String routing(BulkableAction action) {
+        Collection<Object> routing = action.getParameter(Parameters.ROUTING);
+        return routing == null || routing.isEmpty() ? null : routing.iterator().next().toString();
+    }
+
+    private long size(BulkableAction action) {
+        return estimatedSize(action, gson);
+    }
+
+    /**
+     * Estimates the size of the action in a bulk body, sources that are strings already are not rendered again.
+     */
+    static long estimatedSize(BulkableAction action, Gson gson) {
+        String data = action.getData(gson);
+        return ACTION_LINE_SIZE + (data == null ? 0 : data.length());
+    }
+
+    /**
+     * Key of a pending partial update, which must not replace a full action for the same document.
+     */
+    private static class PartialUpdate {
+        private final IndexId id;
+
+        PartialUpdate(IndexId id) {
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id.hashCode() + 1;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PartialUpdate && id.equals(((PartialUpdate) obj).id);
+        }
+    }
+}
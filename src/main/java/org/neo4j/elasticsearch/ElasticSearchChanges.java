@@ -0,0 +1,335 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes of a committed transaction, captured in the commit path so the documents can be rendered
+ * later by a render worker from the committed state.
+ *
+ * Only the indexed entities, labels and changed property values are kept, and the types of deleted relationships,
+ * which can't be read after the commit. Previously committed values are only captured for the properties
+ * that index name templates depend on.
+ */
+class ElasticSearchChanges implements TransactionData {
+    private final List<Node> createdNodes = new ArrayList<>();
+    private final Set<Node> deletedNodes = new HashSet<>();
+    private final List<PropertyEntry<Node>> assignedNodeProperties = new ArrayList<>();
+    private final List<PropertyEntry<Node>> removedNodeProperties = new ArrayList<>();
+    private final List<LabelEntry> assignedLabels = new ArrayList<>();
+    private final List<LabelEntry> removedLabels = new ArrayList<>();
+    private final List<Relationship> createdRelationships = new ArrayList<>();
+    private final Map<Relationship, String> deletedRelationships = new HashMap<>();
+    private final List<PropertyEntry<Relationship>> assignedRelationshipProperties = new ArrayList<>();
+    private final List<PropertyEntry<Relationship>> removedRelationshipProperties = new ArrayList<>();
+    private final long version;
+
+    private ElasticSearchChanges(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Splits the changes by entity id into the given number of partitions, so all changes of an entity
+     * end up in the same partition. Changes that can't affect a document are skipped, like in the commit path.
+     * @param version the external version of the documents, 0 if they aren't versioned
+     * @param tokens the labels, types and properties that are indexed
+     * @param all whether all nodes are indexed, whatever their labels and properties
+     * @param labelsField whether documents contain the labels of their node, so any label change of an indexed node counts
+     * @param nodeKeys the node properties whose previously committed values are captured
+     * @param relationshipKeys the relationship properties whose previously committed values are captured
+     */
+    public static ElasticSearchChanges[] capture(TransactionData data, int partitions, long version, IndexedTokens tokens,
+                                                 boolean all, boolean labelsField, Set<String> nodeKeys, Set<String> relationshipKeys) {
+        ElasticSearchChanges[] changes = new ElasticSearchChanges[partitions];
+        for (int i = 0; i < partitions; i++) {
+            changes[i] = new ElasticSearchChanges(version);
+        }
+        for (Node node : data.createdNodes()) {
+            if (all || tokens.hasIndexedLabel(node)) {
+                changes[partition(node, partitions)].createdNodes.add(node);
+            }
+        }
+        Map<Node, Boolean> labelled = new HashMap<>();
+        for (LabelEntry entry : data.assignedLabels()) {
+            if (data.isDeleted(entry.node())) continue;
+            if (all || tokens.isIndexedLabel(entry.label().name())
+                    || labelsField && labelled.computeIfAbsent(entry.node(), tokens::hasIndexedLabel)) {
+                changes[partition(entry.node(), partitions)].assignedLabels.add(new LabelChange(entry));
+            }
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            boolean deleted = data.isDeleted(entry.node());
+            if (all || tokens.isIndexedLabel(entry.label().name())
+                    || labelsField && !deleted && labelled.computeIfAbsent(entry.node(), tokens::hasIndexedLabel)) {
+                changes[partition(entry.node(), partitions)].removedLabels.add(new LabelChange(entry));
+                // tells the deletes of the document apart from removing the label of a remaining node
+                if (deleted) changes[partition(entry.node(), partitions)].deletedNodes.add(entry.node());
+            }
+        }
+        if (all) {
+            for (Node node : data.deletedNodes()) {
+                changes[partition(node, partitions)].deletedNodes.add(node);
+            }
+        }
+        // the previous values of location properties are needed to find the documents, even of deleted nodes
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (nodeKeys.contains(entry.key()) || relevant(entry, data, tokens, all, labelled)) {
+                changes[partition(entry.entity(), partitions)].add(entry, entry.value(), nodeKeys, data);
+            }
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (nodeKeys.contains(entry.key()) || relevant(entry, data, tokens, all, labelled)) {
+                changes[partition(entry.entity(), partitions)].add(entry, null, nodeKeys, data);
+            }
+        }
+        if (!tokens.hasRelationshipSpecs()) return changes;
+        for (Relationship relationship : data.createdRelationships()) {
+            if (tokens.isIndexedType(relationship.getType().name())) {
+                changes[partition(relationship, partitions)].createdRelationships.add(relationship);
+            }
+        }
+        for (Relationship relationship : data.deletedRelationships()) {
+            String type = relationship.getType().name();
+            if (tokens.isIndexedType(type)) {
+                changes[partition(relationship, partitions)].deletedRelationships.put(relationship, type);
+            }
+        }
+        for (PropertyEntry<Relationship> entry : data.assignedRelationshipProperties()) {
+            if (relationshipKeys.contains(entry.key()) || relevant(entry, data, tokens)) {
+                changes[partition(entry.entity(), partitions)].assignedRelationshipProperties.add(new Property<>(entry, entry.value(), relationshipKeys));
+            }
+        }
+        for (PropertyEntry<Relationship> entry : data.removedRelationshipProperties()) {
+            if (relationshipKeys.contains(entry.key()) || relevant(entry, data, tokens)) {
+                changes[partition(entry.entity(), partitions)].removedRelationshipProperties.add(new Property<>(entry, null, relationshipKeys));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @param value the assigned value, null for a removed property
+     */
+    private void add(PropertyEntry<Node> entry, Object value, Set<String> keys, TransactionData data) {
+        (value == null ? removedNodeProperties : assignedNodeProperties).add(new Property<>(entry, value, keys));
+        if (data.isDeleted(entry.entity())) deletedNodes.add(entry.entity());
+    }
+
+    private static boolean relevant(PropertyEntry<Node> entry, TransactionData data, IndexedTokens tokens, boolean all,
+                                    Map<Node, Boolean> labelled) {
+        if (data.isDeleted(entry.entity())) return false;
+        if (all) return true;
+        return tokens.isIndexedProperty(entry.key())
+                && labelled.computeIfAbsent(entry.entity(), tokens::hasIndexedLabel);
+    }
+
+    private static boolean relevant(PropertyEntry<Relationship> entry, TransactionData data, IndexedTokens tokens) {
+        return tokens.isIndexedRelationshipProperty(entry.key())
+                && !data.isDeleted(entry.entity())
+                && tokens.isIndexedType(entry.entity().getType().name());
+    }
+
+    private static int partition(Node node, int partitions) {
+        return (int) (node.getId() % partitions);
+    }
+
+    private static int partition(Relationship relationship, int partitions) {
+        return (int) (relationship.getId() % partitions);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isEmpty() {
+        return createdNodes.isEmpty() && deletedNodes.isEmpty() && assignedNodeProperties.isEmpty()
+                && removedNodeProperties.isEmpty() && assignedLabels.isEmpty() && removedLabels.isEmpty()
+                && createdRelationships.isEmpty() && deletedRelationships.isEmpty()
+                && assignedRelationshipProperties.isEmpty() && removedRelationshipProperties.isEmpty();
+    }
+
+    /**
+     * @return the type of a relationship deleted in the transaction, null for other relationships
+     */
+    public String deletedType(Relationship relationship) {
+        return deletedRelationships.get(relationship);
+    }
+
+    /**
+     * The changes without the entities that were deleted by a later transaction, which will have removed
+     * their documents. The entities deleted in this transaction are kept.
+     * Must be called in a transaction.
+     */
+    public ElasticSearchChanges existing(GraphDatabaseService db) {
+        ElasticSearchChanges changes = new ElasticSearchChanges(version);
+        changes.deletedNodes.addAll(deletedNodes);
+        changes.deletedRelationships.putAll(deletedRelationships);
+        for (Node node : createdNodes) {
+            if (exists(db, node)) changes.createdNodes.add(node);
+        }
+        for (PropertyEntry<Node> entry : assignedNodeProperties) {
+            if (exists(db, entry.entity())) changes.assignedNodeProperties.add(entry);
+        }
+        for (PropertyEntry<Node> entry : removedNodeProperties) {
+            if (exists(db, entry.entity())) changes.removedNodeProperties.add(entry);
+        }
+        for (LabelEntry entry : assignedLabels) {
+            if (isDeleted(entry.node()) || exists(db, entry.node())) changes.assignedLabels.add(entry);
+        }
+        for (LabelEntry entry : removedLabels) {
+            if (isDeleted(entry.node()) || exists(db, entry.node())) changes.removedLabels.add(entry);
+        }
+        for (Relationship relationship : createdRelationships) {
+            if (exists(db, relationship)) changes.createdRelationships.add(relationship);
+        }
+        for (PropertyEntry<Relationship> entry : assignedRelationshipProperties) {
+            if (exists(db, entry.entity())) changes.assignedRelationshipProperties.add(entry);
+        }
+        for (PropertyEntry<Relationship> entry : removedRelationshipProperties) {
+            if (exists(db, entry.entity())) changes.removedRelationshipProperties.add(entry);
+        }
+        return changes;
+    }
+
+    private static boolean exists(GraphDatabaseService db, PropertyContainer entity) {
+        try {
+            if (entity instanceof Node) db.getNodeById(((Node) entity).getId());
+            else db.getRelationshipById(((Relationship) entity).getId());
+            return true;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Iterable<Node> createdNodes() {
+        return createdNodes;
+    }
+
+    @Override
+    public Iterable<Node> deletedNodes() {
+        return deletedNodes;
+    }
+
+    @Override
+    public boolean isDeleted(Node node) {
+        return deletedNodes.contains(node);
+    }
+
+    @Override
+    public Iterable<PropertyEntry<Node>> assignedNodeProperties() {
+        return assignedNodeProperties;
+    }
+
+    @Override
+    public Iterable<PropertyEntry<Node>> removedNodeProperties() {
+        return removedNodeProperties;
+    }
+
+    @Override
+    public Iterable<LabelEntry> assignedLabels() {
+        return assignedLabels;
+    }
+
+    @Override
+    public Iterable<LabelEntry> removedLabels() {
+        return removedLabels;
+    }
+
+    @Override
+    public Iterable<Relationship> createdRelationships() {
+        return createdRelationships;
+    }
+
+    @Override
+    public Iterable<Relationship> deletedRelationships() {
+        return deletedRelationships.keySet();
+    }
+
+    @Override
+    public boolean isDeleted(Relationship relationship) {
+        return deletedRelationships.containsKey(relationship);
+    }
+
+    @Override
+    public Iterable<PropertyEntry<Relationship>> assignedRelationshipProperties() {
+        return assignedRelationshipProperties;
+    }
+
+    @Override
+    public Iterable<PropertyEntry<Relationship>> removedRelationshipProperties() {
+        return removedRelationshipProperties;
+    }
+
+    private static class Property<T extends PropertyContainer> implements PropertyEntry<T> {
+        private final T entity;
+        private final String key;
+        private final Object value;
+        private final Object previous;
+
+        /**
+         * @param value the assigned value, null for removed properties, which have none
+         * @param keys the properties whose previously committed value is kept
+         */
+        Property(PropertyEntry<T> entry, Object value, Set<String> keys) {
+            this.entity = entry.entity();
+            this.key = entry.key();
+            this.value = value;
+            this.previous = keys.contains(key) ? entry.previouslyCommitedValue() : null;
+        }
+
+        @Override
+        public T entity() {
+            return entity;
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public Object previouslyCommitedValue() {
+            return previous;
+        }
+
+        @Override
+        public Object value() {
+            return value;
+        }
+    }
+
+    private static class LabelChange implements LabelEntry {
+        private final Label label;
+        private final Node node;
+
+        LabelChange(LabelEntry entry) {
+            this.label = entry.label();
+            this.node = entry.node();
+        }
+
+        @Override
+        public Label label() {
+            return label;
+        }
+
+        @Override
+        public Node node() {
+            return node;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.Search;
+import io.searchbox.core.SearchResult;
+import io.searchbox.params.Parameters;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.store.id.IdGeneratorFactory;
+import org.neo4j.kernel.impl.store.id.IdType;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the documents in ElasticSearch with the nodes and relationships of the graph and optionally repairs
+ * the differences: documents that are missing, stale, or orphaned, i.e. whose entity is gone or no longer indexed
+ * with that type.
+ *
+ * The id spaces are split into chunks that are checked in parallel. For every chunk the documents of each index are
+ * looked up by id first, fetching only their hash field, then the entities are read and rendered as the event handler
+ * would. Reading ElasticSearch first means a change committed in between at worst causes a needless repair, never the
+ * deletion of a live document. Without {@code include_hash_field} stale documents are not detected. Documents with
+ * ids above the highest id in use are not looked at. Documents with another routing than the entity's are stale,
+ * they are deleted with their routing and indexed again.
+ *
+ * All requests to ElasticSearch, lookups and repairs, are throttled to {@code maxRequestsPerSecond}.
+ */
+class ElasticSearchConsistencyChecker {
+    private final static Logger logger = Logger.getLogger(ElasticSearchConsistencyChecker.class.getName());
+    private final static String HASH = "hash";
+    private final static String ROUTING = "_routing";
+
+    private final GraphDatabaseAPI db;
+    private final ElasticSearchEventHandler handler;
+    private final JestClient client;
+    private final int chunkSize;
+    private final int parallelism;
+    private final long requestInterval;
+    private final boolean repair;
+    private final Gson gson = new Gson();
+    private final AtomicLong nextRequest = new AtomicLong();
+
+    private final AtomicLong entities = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong orphaned = new AtomicLong();
+    private final AtomicLong repaired = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param maxRequestsPerSecond 0 doesn't throttle the requests
+     * @param repair whether differences are repaired or only counted
+     */
+    public ElasticSearchConsistencyChecker(GraphDatabaseAPI db, ElasticSearchEventHandler handler, JestClient client,
+                                           int chunkSize, int parallelism, int maxRequestsPerSecond, boolean repair) {
+        this.db = db;
+        this.handler = handler;
+        this.client = client;
+        // the ids of a chunk are looked up in one search, which returns at most 10000 hits by default
+        this.chunkSize = Math.max(1, Math.min(chunkSize, 5000));
+        this.parallelism = Math.max(1, parallelism);
+        this.requestInterval = maxRequestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / maxRequestsPerSecond : 0;
+        this.repair = repair;
+    }
+
+    public Stats check() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        IdGeneratorFactory ids = db.getDependencyResolver().resolveDependency(IdGeneratorFactory.class);
+        long highId = ids.get(IdType.NODE).getHighId();
+        Set<String> relationshipIndexes = handler.relationshipIndexes();
+        long highRelationshipId = relationshipIndexes.isEmpty() ? 0 : ids.get(IdType.RELATIONSHIP).getHighId();
+        logger.info("ElasticSearch consistency check of up to " + highId + " nodes and " + highRelationshipId + " relationships started");
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Chunks(0, highId, false, handler.nodeIndexes()));
+            if (highRelationshipId > 0) pool.invoke(new Chunks(0, highRelationshipId, true, relationshipIndexes));
+        } finally {
+            pool.shutdown();
+        }
+
+        Stats stats = new Stats(entities.get(), documents.get(), missing.get(), stale.get(), orphaned.get(),
+                repaired.get(), failed.get(), System.currentTimeMillis() - start);
+        logger.info("ElasticSearch consistency check finished: " + stats);
+        return stats;
+    }
+
+    /**
+     * Waits for the next free slot, so the requests of all chunks together stay below the configured rate.
+     */
+    private void throttle() throws InterruptedException {
+        if (requestInterval == 0) return;
+        long now = System.nanoTime();
+        long slot = Math.max(now, nextRequest.getAndAccumulate(requestInterval, (next, interval) -> Math.max(next, now) + interval));
+        if (slot > now) TimeUnit.NANOSECONDS.sleep(slot - now);
+    }
+
+    /**
+     * @param index the name of the index, or a pattern matching the concrete indexes of a template
+     * @return the documents with ids in the range by concrete index, id and type, null if the lookup failed
+     */
+    private Map<String, Map<String, Map<String, Hit>>> documents(String index, long from, long to) throws InterruptedException {
+        JsonArray values = new JsonArray();
+        for (long id = from; id < to; id++) {
+            values.add(String.valueOf(id));
+        }
+        JsonObject ids = new JsonObject();
+        ids.add("values", values);
+        JsonObject query = new JsonObject();
+        query.add("ids", ids);
+        JsonObject search = new JsonObject();
+        search.add("query", query);
+        JsonArray source = new JsonArray();
+        source.add(HASH);
+        search.add("_source", source);
+        JsonArray fields = new JsonArray();
+        fields.add(ROUTING);
+        search.add("fields", fields);
+        // an id can have documents of several types
+        search.addProperty("size", 2 * (to - from));
+
+        throttle();
+        SearchResult result;
+        try {
+            result = client.execute(new Search.Builder(gson.toJson(search)).addIndex(index).build());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Problem checking ElasticSearch index " + index, e);
+            return null;
+        }
+        Map<String, Map<String, Map<String, Hit>>> documents = new HashMap<>();
+        if (result.getResponseCode() == 404) return documents;
+        if (!result.isSucceeded()) {
+            logger.warning("Problem checking ElasticSearch index " + index + ": " + result.getErrorMessage());
+            return null;
+        }
+        for (JsonElement element : result.getJsonObject().getAsJsonObject("hits").getAsJsonArray("hits")) {
+            JsonObject hit = element.getAsJsonObject();
+            JsonObject hitSource = hit.getAsJsonObject("_source");
+            JsonElement hash = hitSource == null ? null : hitSource.get(HASH);
+            // depending on the version the routing is a metadata field of the hit or among its fields
+            JsonElement routing = hit.has(ROUTING) ? hit.get(ROUTING)
+                    : hit.has("fields") ? hit.getAsJsonObject("fields").get(ROUTING) : null;
+            documents.computeIfAbsent(hit.get("_index").getAsString(), name -> new HashMap<>())
+                    .computeIfAbsent(hit.get("_id").getAsString(), id -> new HashMap<>(2))
+                    .put(hit.get("_type").getAsString(), new Hit(string(hash), string(routing)));
+        }
+        return documents;
+    }
+
+    private static String string(JsonElement element) {
+        if (element == null || element.isJsonNull()) return null;
+        // fields are arrays of values
+        if (element.isJsonArray()) return element.getAsJsonArray().size() == 0 ? null : string(element.getAsJsonArray().get(0));
+        return element.getAsString();
+    }
+
+    /**
+     * @return the regular expression for an index pattern with * wildcards
+     */
+    private static Pattern pattern(String index) {
+        StringBuilder regex = new StringBuilder();
+        for (String part : index.split("\\*", -1)) {
+            if (regex.length() > 0) regex.append(".*");
+            regex.append(Pattern.quote(part));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private void repair(List<BulkableAction> actions) throws InterruptedException {
+        throttle();
+        try {
+            BulkResult result = client.execute(new Bulk.Builder().addAction(actions).build());
+            int failures = result.isSucceeded() ? 0 : result.getFailedItems().size();
+            // no items at all means the whole request was rejected
+            if (failures == 0 && !result.isSucceeded()) failures = actions.size();
+            repaired.addAndGet(actions.size() - failures);
+            failed.addAndGet(failures);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Problem repairing ElasticSearch ", e);
+            failed.addAndGet(actions.size());
+        }
+    }
+
+    private class Chunks extends RecursiveAction {
+        private final long from, to;
+        private final boolean forRelationships;
+        private final Collection<String> indexes;
+
+        Chunks(long from, long to, boolean forRelationships, Collection<String> indexes) {
+            this.from = from;
+            this.to = to;
+            this.forRelationships = forRelationships;
+            this.indexes = indexes;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > chunkSize) {
+                long middle = from + (to - from) / 2;
+                invokeAll(new Chunks(from, middle, forRelationships, indexes), new Chunks(middle, to, forRelationships, indexes));
+                return;
+            }
+            try {
+                check();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void check() throws InterruptedException {
+            Map<String, Map<String, Map<String, Hit>>> found = new HashMap<>();
+            List<Pattern> unchecked = new ArrayList<>();
+            for (String index : indexes) {
+                Map<String, Map<String, Map<String, Hit>>> documents = documents(index, from, to);
+                if (documents == null) {
+                    failed.incrementAndGet();
+                    unchecked.add(pattern(index));
+                    continue;
+                }
+                for (Map.Entry<String, Map<String, Map<String, Hit>>> concrete : documents.entrySet()) {
+                    found.computeIfAbsent(concrete.getKey(), name -> new HashMap<>()).putAll(concrete.getValue());
+                }
+            }
+            if (unchecked.size() == indexes.size()) return;
+
+            Map<String, Map<String, BulkableAction>> expected = new HashMap<>();
+            try (Transaction tx = db.beginTx()) {
+                for (long id = from; id < to; id++) {
+                    PropertyContainer entity;
+                    try {
+                        entity = forRelationships ? db.getRelationshipById(id) : db.getNodeById(id);
+                    } catch (NotFoundException e) {
+                        continue;
+                    }
+                    entities.incrementAndGet();
+                    ElasticSearchActions actions = forRelationships
+                            ? handler.indexRequests((Relationship) entity, handler.nextVersion())
+                            : handler.indexRequests((Node) entity, handler.nextVersion());
+                    for (BulkableAction action : actions.values()) {
+                        expected.computeIfAbsent(action.getIndex(), index -> new HashMap<>()).put(action.getId(), action);
+                    }
+                }
+                tx.success();
+            }
+
+            List<BulkableAction> repairs = new ArrayList<>();
+            Set<String> concreteIndexes = new HashSet<>(found.keySet());
+            concreteIndexes.addAll(expected.keySet());
+            for (String index : concreteIndexes) {
+                if (!found.containsKey(index) && unchecked.stream().anyMatch(pattern -> pattern.matcher(index).matches())) continue;
+                compare(index, found.getOrDefault(index, new HashMap<>()), expected.getOrDefault(index, new HashMap<>()), repairs);
+            }
+            if (repair && !repairs.isEmpty()) repair(repairs);
+        }
+
+        private void compare(String index, Map<String, Map<String, Hit>> found, Map<String, BulkableAction> expected,
+                             List<BulkableAction> repairs) {
+            Set<String> matched = new HashSet<>();
+            for (Map.Entry<String, Map<String, Hit>> document : found.entrySet()) {
+                String id = document.getKey();
+                BulkableAction action = expected.get(id);
+                for (Map.Entry<String, Hit> type : document.getValue().entrySet()) {
+                    documents.incrementAndGet();
+                    Hit hit = type.getValue();
+                    if (action == null || !action.getType().equals(type.getKey())) {
+                        orphaned.incrementAndGet();
+                        repairs.add(handler.deleteRequest(index, type.getKey(), id, hit.routing, handler.nextVersion()));
+                        continue;
+                    }
+                    matched.add(id);
+                    if (!Objects.equals(hit.routing, routing(action))) {
+                        // on another shard than the entity's routing leads to, so lookups by id miss it
+                        stale.incrementAndGet();
+                        repairs.add(handler.deleteRequest(index, type.getKey(), id, hit.routing, handler.nextVersion()));
+                        repairs.add(action);
+                        continue;
+                    }
+                    String hash = ElasticSearchDocumentWriter.hash(action.getData(gson));
+                    if (hash != null && !hash.equals(hit.hash)) {
+                        stale.incrementAndGet();
+                        repairs.add(action);
+                    }
+                }
+            }
+            for (Map.Entry<String, BulkableAction> action : expected.entrySet()) {
+                if (matched.contains(action.getKey())) continue;
+                missing.incrementAndGet();
+                repairs.add(action.getValue());
+            }
+        }
+    }
+
+    private static String routing(BulkableAction action) {
+        Collection<Object> routing = action.getParameter(Parameters.ROUTING);
+        return routing.isEmpty() ? null : routing.iterator().next().toString();
+    }
+
+    private static class Hit {
+        final String hash;
+        final String routing;
+
+        Hit(String hash, String routing) {
+            this.hash = hash;
+            this.routing = routing;
+        }
+    }
+
+    /**
+     * Failed counts the lookups and the repair actions that failed.
+     */
+    static class Stats {
+        final long entities, documents, missing, stale, orphaned, repaired, failed, millis;
+
+        Stats(long entities, long documents, long missing, long stale, long orphaned, long repaired, long failed, long millis) {
+            this.entities = entities;
+            this.documents = documents;
+            this.missing = missing;
+            this.stale = stale;
+            this.orphaned = orphaned;
+            this.repaired = repaired;
+            this.failed = failed;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return entities + " nodes and relationships, " + documents + " documents checked, " + missing + " missing, "
+                    + stale + " stale, " + orphaned + " orphaned, " + repaired + " repaired, " + failed + " failed in " + millis + " ms";
+        }
+    }
+}
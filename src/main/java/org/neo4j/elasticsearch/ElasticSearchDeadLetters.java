@@ -0,0 +1,92 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Bulk;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records actions that ElasticSearch refused for good, e.g. because of mapping errors, so they
+ * are not lost and can be sent again once the cause is fixed.
+ *
+ * Every action is appended as one JSON line with the time, the error and the bulk request lines
+ * of the action, which can be posted to the {@code _bulk} endpoint as they are.
+ */
+class ElasticSearchDeadLetters {
+    private final static Logger logger = Logger.getLogger(ElasticSearchDeadLetters.class.getName());
+
+    private final Gson gson = new Gson();
+    private final Writer writer;
+
+    /**
+     * Only logs the refused actions.
+     */
+    public ElasticSearchDeadLetters() {
+        this.writer = null;
+    }
+
+    public ElasticSearchDeadLetters(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    public void add(BulkableAction action, String error) {
+        logger.severe("ElasticSearch refused " + action.getBulkMethodName() + " of " + action.getIndex() + "/" + action.getId() + ": " + error);
+        write(new Bulk.Builder().addAction(action).build().getData(gson), error);
+    }
+
+    /**
+     * @param request the bulk request lines of one action, as read from the outbox
+     */
+    public void add(String request, String error) {
+        int end = request.indexOf('\n');
+        logger.severe("ElasticSearch refused " + (end < 0 ? request : request.substring(0, end)) + ": " + error);
+        write(request, error);
+    }
+
+    private void write(String request, String error) {
+        if (writer == null) return;
+        JsonObject letter = new JsonObject();
+        letter.addProperty("time", System.currentTimeMillis());
+        letter.addProperty("error", error);
+        letter.addProperty("request", request);
+        try {
+            synchronized (writer) {
+                writer.write(gson.toJson(letter));
+                writer.write('\n');
+                writer.flush();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error writing ElasticSearch dead letter ", e);
+        }
+    }
+
+    public void addAll(Collection<BulkableAction> actions, String error) {
+        for (BulkableAction action : actions) {
+            add(action, error);
+        }
+    }
+
+    public void close() {
+        if (writer == null) return;
+        try {
+            synchronized (writer) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing ElasticSearch dead letters ", e);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the JSON source of a node or relationship document straight from the property reads into a
+ * buffer that is reused for every document, instead of building maps for Gson to serialize.
+ *
+ * Not thread safe, use one writer per thread.
+ */
+class ElasticSearchDocumentWriter {
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+    // the hash field is written last, as ,"hash":"<16 hex digits>"}
+    private final static String HASH_FIELD = ",\"hash\":\"";
+    private final static int HASH_SUFFIX = HASH_FIELD.length() + 18;
+    private final static long FNV_OFFSET = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    private final ElasticSearchIndexSettings indexSettings;
+    private final StringBuilder buffer = new StringBuilder(1024);
+    private final List<String> propertyKeys = new ArrayList<>();
+    // where the properties of the current document start, and the sum of their hashes
+    private int propertiesStart;
+    private long propertiesHash;
+
+    public ElasticSearchDocumentWriter(ElasticSearchIndexSettings indexSettings) {
+        this.indexSettings = indexSettings;
+    }
+
+    /**
+     * @param keys the property keys to render, e.g. of a projection of the render plan, all properties of the node if null or empty
+     */
+    public String render(Node node, String[] keys) {
+        buffer.setLength(0);
+        buffer.append('{');
+        if (indexSettings.getIncludeIDField()) {
+            buffer.append("\"id\":");
+            string(String.valueOf(node.getId()));
+            buffer.append(',');
+        }
+        if (indexSettings.getIncludeLabelsField()) {
+            buffer.append("\"labels\":[");
+            boolean first = true;
+            for (Label label : node.getLabels()) {
+                if (!first) buffer.append(',');
+                string(label.name());
+                first = false;
+            }
+            buffer.append("],");
+        }
+        properties(node, keys);
+        return buffer.toString();
+    }
+
+    /**
+     * Renders a relationship document, which always contains the ids of its start and end node.
+     * @param keys the property keys to render, all properties of the relationship if null or empty
+     */
+    public String render(Relationship relationship, String[] keys) {
+        buffer.setLength(0);
+        buffer.append('{');
+        if (indexSettings.getIncludeIDField()) {
+            buffer.append("\"id\":");
+            string(String.valueOf(relationship.getId()));
+            buffer.append(',');
+        }
+        if (indexSettings.getIncludeLabelsField()) {
+            buffer.append("\"type\":");
+            string(relationship.getType().name());
+            buffer.append(',');
+        }
+        buffer.append("\"start\":");
+        string(String.valueOf(relationship.getStartNode().getId()));
+        buffer.append(",\"end\":");
+        string(String.valueOf(relationship.getEndNode().getId()));
+        buffer.append(',');
+        properties(relationship, keys);
+        return buffer.toString();
+    }
+
+    /**
+     * Reads the properties in one pass over the entity's property chain, instead of one lookup per key.
+     * Keys the entity doesn't have are left out, sparse entities are the norm.
+     */
+    private void properties(PropertyContainer entity, String[] keys) {
+        propertyKeys.clear();
+        // properties are written one level deeper, to avoid conflicts with "id" and "labels"
+        buffer.append("\"properties\":{");
+        propertiesStart = buffer.length();
+        propertiesHash = 0;
+        if (keys == null || keys.length == 0) {
+            for (Map.Entry<String, Object> property : entity.getAllProperties().entrySet()) {
+                hashedProperty(property.getKey(), property.getValue());
+                propertyKeys.add(property.getKey());
+            }
+        } else {
+            Map<String, Object> values = entity.getProperties(keys);
+            for (String key : keys) {
+                Object value = values.get(key);
+                if (value != null) hashedProperty(key, value);
+            }
+        }
+        buffer.append('}');
+        if (indexSettings.getIncludeHashField()) hash();
+        buffer.append('}');
+    }
+
+    private void hashedProperty(String name, Object value) {
+        int start = buffer.length();
+        property(name, value);
+        if (buffer.charAt(start) == ',') start++;
+        if (indexSettings.getIncludeHashField()) propertiesHash += fnv(FNV_OFFSET, start, buffer.length());
+    }
+
+    /**
+     * Appends a 64 bit hash of the document rendered so far, so a consistency check can compare documents
+     * without fetching their sources. The properties are hashed one by one and their hashes added up, so the
+     * hash doesn't depend on the order they were read in, which differs between projections of the same properties.
+     */
+    private void hash() {
+        long hash = fnv(FNV_OFFSET, 0, propertiesStart);
+        hash ^= propertiesHash;
+        hash *= FNV_PRIME;
+        buffer.append(HASH_FIELD);
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buffer.append(HEX[(int) (hash >>> shift) & 0xF]);
+        }
+        buffer.append('"');
+    }
+
+    /**
+     * Continues the FNV-1a hash over a range of the buffer.
+     */
+    private long fnv(long hash, int from, int to) {
+        for (int i = from; i < to; i++) {
+            hash ^= buffer.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the hash written into a rendered document, null if it has none
+     */
+    static String hash(String source) {
+        int start = source.length() - HASH_SUFFIX;
+        if (start < 0 || !source.startsWith(HASH_FIELD, start)) return null;
+        return source.substring(start + HASH_FIELD.length(), source.length() - 2);
+    }
+
+    /**
+     * Renders a partial update document for the given properties, removed properties are set to null.
+     * @param hash the hash of the whole document after the update, written if the hash field is included
+     */
+    public String renderPartial(Map<String, Object> properties, String hash) {
+        buffer.setLength(0);
+        buffer.append("{\"doc\":{\"properties\":{");
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            property(entry.getKey(), entry.getValue());
+        }
+        buffer.append('}');
+        if (indexSettings.getIncludeHashField()) {
+            buffer.append(HASH_FIELD).append(hash).append('"');
+        }
+        buffer.append("}}");
+        return buffer.toString();
+    }
+
+    /**
+     * The property keys written by the last {@link #render} of all properties.
+     */
+    public List<String> renderedPropertyKeys() {
+        return propertyKeys;
+    }
+
+    private void property(String name, Object value) {
+        if (buffer.charAt(buffer.length() - 1) != '{') buffer.append(',');
+        string(name);
+        buffer.append(':');
+        value(value);
+    }
+
+    private void value(Object value) {
+        if (value == null) {
+            buffer.append("null");
+        } else if (value instanceof String) {
+            string((String) value);
+        } else if (value instanceof Boolean) {
+            buffer.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) buffer.append("null");
+            else buffer.append(value.toString());
+        } else if (value instanceof Number) {
+            buffer.append(((Number) value).longValue());
+        } else if (value instanceof Character) {
+            string(value.toString());
+        } else if (value.getClass().isArray()) {
+            buffer.append('[');
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                if (i > 0) buffer.append(',');
+                value(Array.get(value, i));
+            }
+            buffer.append(']');
+        } else {
+            string(value.toString());
+        }
+    }
+
+    private void string(String value) {
+        buffer.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': buffer.append("\\\""); break;
+                case '\\': buffer.append("\\\\"); break;
+                case '\n': buffer.append("\\n"); break;
+                case '\r': buffer.append("\\r"); break;
+                case '\t': buffer.append("\\t"); break;
+                case '\b': buffer.append("\\b"); break;
+                case '\f': buffer.append("\\f"); break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        buffer.append("\\u").append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF])
+                                .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+                    } else {
+                        buffer.append(c);
+                    }
+            }
+        }
+        buffer.append('"');
+    }
+}
@@ -1,316 +1,1262 @@
 package org.neo4j.elasticsearch;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.JestResultHandler;
-import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
 import io.searchbox.core.Delete;
 import io.searchbox.core.Index;
 import io.searchbox.core.Update;
+import io.searchbox.params.Parameters;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.event.LabelEntry;
 import org.neo4j.graphdb.event.PropertyEntry;
 import org.neo4j.graphdb.event.TransactionData;
 import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+* The state handed from {@code beforeCommit} to {@code afterCommit} is either the rendered actions, the records
+* prepared in the outbox for them, or the captured changes when the documents are rendered by render workers.
+*
 * @author mh
 * @since 25.04.15
 */
-class ElasticSearchEventHandler implements TransactionEventHandler<Collection<BulkableAction>>, JestResultHandler<JestResult> {
-    private final JestClient client;
+class ElasticSearchEventHandler implements TransactionEventHandler<Object> {
+    private final ElasticSearchTransport transport;
     private final static Logger logger = Logger.getLogger(ElasticSearchEventHandler.class.getName());
+    private final static long DROP_WARNING_INTERVAL = 10000;
+    private final static long MAX_RETRY_DELAY = 30000;
+    private final static long SHUTDOWN_TIMEOUT = 10000;
+    private final static Set<String> RETRYABLE_ERRORS = new HashSet<>(Arrays.asList("es_rejected_execution_exception",
+            "timeout_exception", "process_cluster_event_timeout_exception", "receive_timeout_transport_exception"));
     private final ElasticSearchIndexSettings indexSettings;
     private final Set<String> indexLabels;
+    private final IndexedTokens tokens;
     private final String indexAll;
     private final String indexAllType = "node";
+    // the ordinals of the index names, apart for nodes and relationships as the actions are keyed by entity id,
+    // the index for all nodes comes after those of the specs and has its own, as its documents have another type
+    private final Map<String, Integer> nodeOrdinals = new HashMap<>();
+    private final Map<String, Integer> relationshipOrdinals = new HashMap<>();
+    private final int indexAllOrdinal;
+    // the ordinals for the deletes of documents that moved to another index of a template or another routing,
+    // before those of the indexes, so a delete with the old routing can't remove the document indexed with the new one
+    private final Map<String, Integer> nodeMovedOrdinals = new HashMap<>();
+    private final Map<String, Integer> relationshipMovedOrdinals = new HashMap<>();
+    private final int ordinalCount;
+    private final Set<String> nodeLocationProperties = new HashSet<>();
+    private final Set<String> relationshipLocationProperties = new HashSet<>();
+    private final ElasticSearchRenderPlan plan;
+    private final ThreadLocal<ElasticSearchDocumentWriter> writers;
     private boolean useAsyncJest = true;
+    private boolean partialUpdates = false;
+    private ElasticSearchBulkQueue bulkQueue;
+    private ElasticSearchOutbox outbox;
+    private ElasticSearchInFlightLimiter limiter;
+    private ElasticSearchOutbox spill;
+    private final ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+    private final Gson gson = new Gson();
+    private volatile long lastDropWarning;
+    private final ScheduledExecutorService retries;
+    private int maxRetries = 5;
+    private long retryDelay = 100;
+    private ElasticSearchDeadLetters deadLetters = new ElasticSearchDeadLetters();
+    private GraphDatabaseService db;
+    private ExecutorService[] renderers;
+    private boolean externalVersions = false;
+    private final AtomicLong lastVersion = new AtomicLong();
+    private ElasticSearchLanes lanes;
+    private int bulkMaxActions = 1000;
+    private long bulkMaxBytes = 5 * 1024 * 1024;
 
     public ElasticSearchEventHandler(JestClient client, ElasticSearchIndexSettings indexSettings, String indexAll) {
-        this.client = client;
+        this(new ElasticSearchJestTransport(client), indexSettings, indexAll);
+    }
+
+    public ElasticSearchEventHandler(ElasticSearchTransport transport, ElasticSearchIndexSettings indexSettings, String indexAll) {
+        this.transport = transport;
         this.indexSettings = indexSettings;
         this.indexLabels = indexSettings.getIndexSpec().keySet();
+        this.tokens = new IndexedTokens(indexSettings);
         this.indexAll = indexAll;
+        int ordinal = 0;
+        for (List<ElasticSearchIndexSpec> specs : indexSettings.getIndexSpec().values()) {
+            for (ElasticSearchIndexSpec spec : specs) {
+                nodeLocationProperties.addAll(spec.getLocationProperties());
+                if (!spec.getLocationProperties().isEmpty() && !nodeMovedOrdinals.containsKey(spec.getIndexName())) {
+                    nodeMovedOrdinals.put(spec.getIndexName(), ordinal++);
+                }
+            }
+        }
+        for (List<ElasticSearchIndexSpec> specs : indexSettings.getRelationshipIndexSpec().values()) {
+            for (ElasticSearchIndexSpec spec : specs) {
+                relationshipLocationProperties.addAll(spec.getLocationProperties());
+                if (!spec.getLocationProperties().isEmpty() && !relationshipMovedOrdinals.containsKey(spec.getIndexName())) {
+                    relationshipMovedOrdinals.put(spec.getIndexName(), ordinal++);
+                }
+            }
+        }
+        for (List<ElasticSearchIndexSpec> specs : indexSettings.getIndexSpec().values()) {
+            for (ElasticSearchIndexSpec spec : specs) {
+                if (!nodeOrdinals.containsKey(spec.getIndexName())) nodeOrdinals.put(spec.getIndexName(), ordinal++);
+            }
+        }
+        for (List<ElasticSearchIndexSpec> specs : indexSettings.getRelationshipIndexSpec().values()) {
+            for (ElasticSearchIndexSpec spec : specs) {
+                if (!relationshipOrdinals.containsKey(spec.getIndexName())) relationshipOrdinals.put(spec.getIndexName(), ordinal++);
+            }
+        }
+        this.indexAllOrdinal = ordinal;
+        this.ordinalCount = ordinal + 1;
+        this.plan = new ElasticSearchRenderPlan(indexSettings);
+        this.writers = ThreadLocal.withInitial(() -> new ElasticSearchDocumentWriter(indexSettings));
+        this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "elasticsearch-retry");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
-    public Collection<BulkableAction> beforeCommit(TransactionData transactionData) throws Exception {
-        Map<IndexId, BulkableAction> actions = new HashMap<>(1000);
+    public Object beforeCommit(TransactionData transactionData) throws Exception {
+        long start = System.nanoTime();
+        if (renderers != null) {
+            ElasticSearchChanges[] changes = ElasticSearchChanges.capture(transactionData, renderers.length, nextVersion(),
+                    tokens, indexAll != null, indexSettings.getIncludeLabelsField(), nodeLocationProperties, relationshipLocationProperties);
+            metrics.beforeCommit(System.nanoTime() - start);
+            return changes;
+        }
+        ElasticSearchActions actions = actions(transactionData, nextVersion());
+        metrics.actions(actions.size());
+        Object state = outbox != null && !actions.isEmpty() ? prepare(actions) : actions;
+        metrics.beforeCommit(System.nanoTime() - start);
+        return state;
+    }
+
+    /**
+     * Records the actions in the outbox before the transaction commits, so they aren't lost if Neo4j stops
+     * right after the commit. One record per chunk within the bulk limits, the shipper sends records without
+     * splitting them.
+     *
+     * @return the prepared records, or the actions to send directly if they can't be written
+     */
+    private Object prepare(ElasticSearchActions actions) {
+        try {
+            return outbox.prepare(chunks(actions.values(), new ArrayList<>()));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error writing ElasticSearch outbox, sending directly ", e);
+            return actions;
+        }
+    }
+
+    /**
+     * @param version the external version of the documents, 0 if they aren't versioned
+     */
+    private ElasticSearchActions actions(TransactionData transactionData, long version) {
+        ElasticSearchActions actions = newActions();
+        // with an index for all nodes every change is relevant, otherwise only changes to nodes with indexed labels
+        boolean all = indexAll != null;
+        Set<Node> indexed = new HashSet<>();
+        DocumentCache cache = new DocumentCache();
+        if (!nodeLocationProperties.isEmpty()) {
+            // where the documents were before, for moving or deleting them
+            for (PropertyEntry<Node> propEntry : transactionData.assignedNodeProperties()) {
+                if (nodeLocationProperties.contains(propEntry.key())) cache.previous(propEntry, propEntry.entity().getId(), false);
+            }
+            for (PropertyEntry<Node> propEntry : transactionData.removedNodeProperties()) {
+                if (nodeLocationProperties.contains(propEntry.key())) cache.previous(propEntry, propEntry.entity().getId(), false);
+            }
+        }
 
         for (Node node : transactionData.createdNodes()) {
-        	actions.putAll(indexRequests(node));
+            if (all || tokens.hasIndexedLabel(node)) {
+                indexRequests(node, version, cache, actions);
+                indexed.add(node);
+            }
         }
         for (LabelEntry labelEntry : transactionData.assignedLabels()) {
-            if (transactionData.isDeleted(labelEntry.node())) {
-                actions.putAll(deleteRequests(labelEntry.node()));
-            } else {
-                actions.putAll(indexRequests(labelEntry.node()));
+            if (!all && !tokens.isIndexedLabel(labelEntry.label().name()) && !labelsField(labelEntry.node())) continue;
+            if (!transactionData.isDeleted(labelEntry.node()) && indexed.add(labelEntry.node())) {
+                indexRequests(labelEntry.node(), version, cache, actions);
+            }
+        }
+        if (indexSettings.getIncludeLabelsField()) {
+            // the documents of a remaining node list its labels, so they are indexed again when one is removed,
+            // before the deletes from the indexes of removed labels, which are skipped where the node remains
+            for (LabelEntry labelEntry : transactionData.removedLabels()) {
+                Node node = labelEntry.node();
+                if (!transactionData.isDeleted(node) && !indexed.contains(node) && (all || tokens.hasIndexedLabel(node))) {
+                    indexRequests(node, version, cache, actions);
+                    indexed.add(node);
+                }
+            }
+        }
+        // deleted nodes can't be read anymore, their labels are only known from the removed label entries
+        if (all) {
+            for (Node node : transactionData.deletedNodes()) {
+                actions.put(indexAllOrdinal, node.getId(), deleteRequest(indexAll, indexAllType, id(node), null, version));
             }
         }
         for (LabelEntry labelEntry : transactionData.removedLabels()) {
-        	actions.putAll(deleteRequests(labelEntry.node(), labelEntry.label()));
+            Node node = labelEntry.node();
+            boolean deleted = transactionData.isDeleted(node);
+            String label = labelEntry.label().name();
+            if (tokens.isIndexedLabel(label)) {
+                String id = id(node);
+                for (ElasticSearchIndexSpec spec : indexSettings.getIndexSpec().get(label)) {
+                    int index = nodeOrdinals.get(spec.getIndexName());
+                    // another label of a remaining node may have indexed it into the same index
+                    if (!deleted && actions.contains(index, node.getId())) continue;
+                    Function<String, Object> previous = key -> cache.previous(node, key, deleted);
+                    actions.put(index, node.getId(), deleteRequest(spec.indexName(node.getId(), previous), label, id,
+                            spec.routing(previous), version));
+                }
+            }
         }
+        Map<Node, Map<String, Object>> changedProperties = new LinkedHashMap<>();
         for (PropertyEntry<Node> propEntry : transactionData.assignedNodeProperties()) {
-        	actions.putAll(indexRequests(propEntry.entity()));
+            if (relevant(propEntry, all, indexed, transactionData))
+                changes(changedProperties, propEntry.entity()).put(propEntry.key(), propEntry.value());
         }
         for (PropertyEntry<Node> propEntry : transactionData.removedNodeProperties()) {
-            if (!transactionData.isDeleted(propEntry.entity()))
-                actions.putAll(updateRequests(propEntry.entity()));
+            if (relevant(propEntry, all, indexed, transactionData))
+                changes(changedProperties, propEntry.entity()).put(propEntry.key(), null);
+        }
+        for (Map.Entry<Node, Map<String, Object>> entry : changedProperties.entrySet()) {
+            if (all || tokens.hasIndexedLabel(entry.getKey()))
+                propertyRequests(entry.getKey(), entry.getValue(), actions, version, cache);
+        }
+        if (tokens.hasRelationshipSpecs()) {
+            relationshipRequests(transactionData, actions, version, cache);
         }
-        return actions.isEmpty() ? Collections.<BulkableAction>emptyList() : actions.values();
+        return actions;
+    }
+
+    /**
+     * Whether a change of any label of the node changes its documents, as they list its labels.
+     */
+    private boolean labelsField(Node node) {
+        return indexSettings.getIncludeLabelsField() && tokens.hasIndexedLabel(node);
+    }
+
+    private ElasticSearchActions newActions() {
+        return new ElasticSearchActions(ordinalCount);
+    }
+
+    /**
+     * Property changes of nodes that were indexed in full in this transaction, or deleted, need no requests of their own.
+     */
+    private boolean relevant(PropertyEntry<Node> propEntry, boolean all, Set<Node> indexed, TransactionData transactionData) {
+        return (all || tokens.isIndexedProperty(propEntry.key()))
+                && !indexed.contains(propEntry.entity())
+                && !transactionData.isDeleted(propEntry.entity());
+    }
+
+    private void relationshipRequests(TransactionData transactionData, ElasticSearchActions actions, long version, DocumentCache cache) {
+        Set<Relationship> indexed = new HashSet<>();
+        if (!relationshipLocationProperties.isEmpty()) {
+            for (PropertyEntry<Relationship> propEntry : transactionData.assignedRelationshipProperties()) {
+                if (relationshipLocationProperties.contains(propEntry.key())) cache.previous(propEntry, propEntry.entity().getId(), true);
+            }
+            for (PropertyEntry<Relationship> propEntry : transactionData.removedRelationshipProperties()) {
+                if (relationshipLocationProperties.contains(propEntry.key())) cache.previous(propEntry, propEntry.entity().getId(), true);
+            }
+        }
+        for (Relationship relationship : transactionData.createdRelationships()) {
+            if (tokens.isIndexedType(relationship.getType().name())) {
+                indexRequests(relationship, version, cache, actions);
+                indexed.add(relationship);
+            }
+        }
+        // deletes only need the type and id, so deleting a node with all its relationships reads no properties
+        for (Relationship relationship : transactionData.deletedRelationships()) {
+            // captured changes know the type, a deleted relationship can't be read after the commit
+            String type = transactionData instanceof ElasticSearchChanges
+                    ? ((ElasticSearchChanges) transactionData).deletedType(relationship)
+                    : relationship.getType().name();
+            if (tokens.isIndexedType(type)) {
+                deleteRequests(relationship, type, version, actions, cache);
+            }
+        }
+        Map<Relationship, Map<String, Object>> changedProperties = new LinkedHashMap<>();
+        for (PropertyEntry<Relationship> propEntry : transactionData.assignedRelationshipProperties()) {
+            if (relevant(propEntry, indexed, transactionData))
+                changes(changedProperties, propEntry.entity()).put(propEntry.key(), propEntry.value());
+        }
+        for (PropertyEntry<Relationship> propEntry : transactionData.removedRelationshipProperties()) {
+            if (relevant(propEntry, indexed, transactionData))
+                changes(changedProperties, propEntry.entity()).put(propEntry.key(), null);
+        }
+        for (Map.Entry<Relationship, Map<String, Object>> entry : changedProperties.entrySet()) {
+            propertyRequests(entry.getKey(), entry.getValue(), actions, version, cache);
+        }
+    }
+
+    private boolean relevant(PropertyEntry<Relationship> propEntry, Set<Relationship> indexed, TransactionData transactionData) {
+        return tokens.isIndexedRelationshipProperty(propEntry.key())
+                && !indexed.contains(propEntry.entity())
+                && !transactionData.isDeleted(propEntry.entity())
+                && tokens.isIndexedType(propEntry.entity().getType().name());
+    }
+
+    boolean indexesRelationships() {
+        return tokens.hasRelationshipSpecs();
+    }
+
+    boolean indexesAllNodes() {
+        return indexAll != null;
+    }
+
+    /**
+     * @return the labels of the index specs
+     */
+    Set<String> indexedLabels() {
+        return indexLabels;
+    }
+
+    /**
+     * @return the names of the indexes nodes are indexed into, with * in place of the placeholders of templates
+     */
+    Set<String> nodeIndexes() {
+        Set<String> indexes = new LinkedHashSet<>();
+        for (List<ElasticSearchIndexSpec> specs : indexSettings.getIndexSpec().values()) {
+            for (ElasticSearchIndexSpec spec : specs) indexes.add(spec.getIndexPattern());
+        }
+        if (indexAll != null) indexes.add(indexAll);
+        return indexes;
+    }
+
+    /**
+     * @return the names of the indexes relationships are indexed into, with * in place of the placeholders of templates
+     */
+    Set<String> relationshipIndexes() {
+        Set<String> indexes = new LinkedHashSet<>();
+        for (List<ElasticSearchIndexSpec> specs : indexSettings.getRelationshipIndexSpec().values()) {
+            for (ElasticSearchIndexSpec spec : specs) indexes.add(spec.getIndexPattern());
+        }
+        return indexes;
+    }
+
+    /**
+     * Enables checking the labels of nodes by their token ids.
+     */
+    public void setStatementBridge(ThreadToStatementContextBridge bridge) {
+        tokens.setStatementBridge(bridge);
     }
 
     public void setUseAsyncJest(boolean useAsyncJest) {
         this.useAsyncJest = useAsyncJest;
     }
 
+    /**
+     * Sends only the changed properties of existing nodes as partial updates, instead of the whole document.
+     */
+    public void setPartialUpdates(boolean partialUpdates) {
+        this.partialUpdates = partialUpdates;
+    }
+
+    /**
+     * Partial updates can't carry an external version, so when the order of the actions relies on versions
+     * alone, without lanes, whole documents are sent instead.
+     */
+    private boolean partialUpdates() {
+        return partialUpdates && (!externalVersions || lanes != null);
+    }
+
+    /**
+     * Routes committed actions through the given queue instead of sending one bulk per transaction.
+     */
+    public void setBulkQueue(ElasticSearchBulkQueue bulkQueue) {
+        this.bulkQueue = bulkQueue;
+        metrics.setQueueSize(bulkQueue::size);
+    }
+
+    /**
+     * Records the actions in the given outbox, from where they are shipped, instead of sending them directly.
+     * Actions rendered in the committing thread are recorded before the commit, those of render workers after it.
+     */
+    public void setOutbox(ElasticSearchOutbox outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * Limits the bulk requests that are sent at the same time, bulks beyond the limit are handled by its overflow policy.
+     */
+    public void setInFlightLimiter(ElasticSearchInFlightLimiter limiter) {
+        this.limiter = limiter;
+        metrics.setInFlight(limiter::inFlight, limiter::limit);
+    }
+
+    /**
+     * The outbox that bulks are written to when the in flight limit is reached and the overflow policy is to spill.
+     */
+    public void setSpill(ElasticSearchOutbox spill) {
+        this.spill = spill;
+    }
+
+    /**
+     * @return the number of actions that were dropped because the in flight limit was reached
+     */
+    public long dropped() {
+        return metrics.getDropped();
+    }
+
+    public ElasticSearchMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Retries failed actions up to {@code maxRetries} times, waiting about {@code retryDelay} ms before the
+     * first retry and twice as long before each further one.
+     */
+    public void setRetries(int maxRetries, long retryDelay) {
+        this.maxRetries = maxRetries;
+        this.retryDelay = Math.max(1, retryDelay);
+    }
+
+    /**
+     * Where actions go that ElasticSearch refused for good, or that failed too often.
+     */
+    public void setDeadLetters(ElasticSearchDeadLetters deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
+    /**
+     * Splits the actions handed to ElasticSearch into bulk requests of at most that many actions and estimated bytes.
+     */
+    public void setBulkLimits(int maxActions, long maxBytes) {
+        this.bulkMaxActions = Math.max(1, maxActions);
+        this.bulkMaxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    }
+
+    /**
+     * Sends index and delete actions with the transaction's version as external version, so ElasticSearch
+     * ignores an action that arrives after one of a later transaction for the same document.
+     */
+    public void setExternalVersions(boolean externalVersions) {
+        this.externalVersions = externalVersions;
+    }
+
+    /**
+     * Sends the bulk requests in the given number of lanes, each with at most one request in flight, and the
+     * actions for a document always in the same lane, so they arrive in the order of the commits.
+     */
+    public void setLanes(int lanes) {
+        this.lanes = new ElasticSearchLanes(lanes, this::submit, retries);
+    }
+
+    /**
+     * Versions are taken in the commit path, where the write locks order the transactions that change the same
+     * entity. They start from the current time in microseconds, so they keep growing across restarts.
+     * @return the next version, 0 if versions are not used
+     */
+    long nextVersion() {
+        if (!externalVersions) return 0;
+        long now = System.currentTimeMillis() * 1000;
+        return lastVersion.updateAndGet(last -> Math.max(last + 1, now));
+    }
+
+    /**
+     * Sets the external version and the routing of the document on the builder of its action.
+     * @param version the external version of the document, 0 if it isn't versioned
+     * @param routing the routing of the document, null to route it by id
+     */
+    private static void parameters(BiConsumer<String, Object> builder, long version, String routing) {
+        if (version != 0) {
+            builder.accept(Parameters.VERSION, version);
+            builder.accept(Parameters.VERSION_TYPE, "external");
+        }
+        if (routing != null) builder.accept(Parameters.ROUTING, routing);
+    }
+
+    /**
+     * Renders the documents in the given number of worker threads instead of the committing thread, which only
+     * captures the changes. The changes of an entity are always rendered by the same worker, in commit order.
+     * Workers read the committed state, so a document may already contain the changes of later transactions.
+     */
+    public void setRenderWorkers(GraphDatabaseService db, int workers) {
+        this.db = db;
+        this.renderers = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            String name = "elasticsearch-render-" + i;
+            renderers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public void shutdown() {
+        if (renderers != null) {
+            for (ExecutorService renderer : renderers) {
+                renderer.shutdown();
+            }
+            try {
+                for (ExecutorService renderer : renderers) {
+                    if (!renderer.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        logger.warning("ElasticSearch documents still rendering at shutdown");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (bulkQueue != null) bulkQueue.shutdown();
+        awaitInFlight();
+        // send the pending retries right away instead of losing them
+        for (Runnable retry : retries.shutdownNow()) {
+            retry.run();
+        }
+        awaitInFlight();
+    }
+
+    /**
+     * Gives the requests in flight time to finish before the client is shut down, which would fail them.
+     */
+    private void awaitInFlight() {
+        try {
+            if (lanes != null && !lanes.awaitIdle(SHUTDOWN_TIMEOUT)) {
+                logger.warning("ElasticSearch lanes still sending at shutdown");
+            }
+            if (limiter != null && !limiter.awaitIdle(SHUTDOWN_TIMEOUT)) {
+                logger.warning("ElasticSearch requests still in flight at shutdown: " + limiter.inFlight());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
-    public void afterCommit(TransactionData transactionData, Collection<BulkableAction> actions) {
+    @SuppressWarnings("unchecked")
+    public void afterCommit(TransactionData transactionData, Object state) {
+        if (state instanceof ElasticSearchOutbox.Prepared) {
+            ((ElasticSearchOutbox.Prepared) state).commit();
+        } else if (state instanceof ElasticSearchChanges[]) {
+            render((ElasticSearchChanges[]) state, System.currentTimeMillis());
+        } else {
+            dispatch((ElasticSearchActions) state, System.currentTimeMillis());
+        }
+    }
+
+    private void render(ElasticSearchChanges[] changes, long committed) {
+        // the actions of a transaction are counted once all its partitions are rendered
+        AtomicInteger pending = new AtomicInteger(changes.length);
+        AtomicInteger count = new AtomicInteger();
+        for (int i = 0; i < changes.length; i++) {
+            ElasticSearchChanges partition = changes[i];
+            Runnable task = () -> {
+                ElasticSearchActions actions = render(partition);
+                count.addAndGet(actions.size());
+                if (pending.decrementAndGet() == 0) metrics.actions(count.get());
+                dispatch(actions, committed);
+            };
+            try {
+                if (partition.isEmpty()) task.run();
+                else renderers[i].execute(task);
+            } catch (RejectedExecutionException e) {
+                logger.warning("ElasticSearch documents not rendered after shutdown");
+            }
+        }
+    }
+
+    /**
+     * Builds the actions from the committed state. Entities that a later transaction deleted in the meantime
+     * are left out, that transaction removes their documents.
+     */
+    private ElasticSearchActions render(ElasticSearchChanges changes) {
+        try (Transaction tx = db.beginTx()) {
+            ElasticSearchActions actions;
+            try {
+                actions = actions(changes, changes.getVersion());
+            } catch (NotFoundException e) {
+                actions = actions(changes.existing(db), changes.getVersion());
+            }
+            tx.success();
+            return actions;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error rendering ElasticSearch documents ", e);
+            return newActions();
+        }
+    }
+
+    private void dispatch(ElasticSearchActions actions, long committed) {
         if (actions.isEmpty()) return;
+        List<BulkableAction> values = actions.values();
+        if (outbox != null) {
+            // rendered after the commit, the actions can only be recorded now
+            List<List<BulkableAction>> chunks = chunks(values, new ArrayList<>());
+            int appended = 0;
+            try {
+                for (List<BulkableAction> chunk : chunks) {
+                    outbox.append(chunk);
+                    appended++;
+                }
+                return;
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error writing ElasticSearch outbox, sending directly ", e);
+            }
+            values = new ArrayList<>();
+            for (List<BulkableAction> chunk : chunks.subList(appended, chunks.size())) {
+                values.addAll(chunk);
+            }
+        }
+        if (bulkQueue != null) {
+            bulkQueue.add(values);
+        } else {
+            submit(values, committed);
+        }
+    }
+
+    /**
+     * @param committed the commit time of the oldest transaction the actions belong to
+     */
+    void submit(Collection<BulkableAction> actions, long committed) {
+        if (lanes != null) lanes.submit(actions, committed);
+        else submit(new ArrayList<>(actions), 0, committed, null);
+    }
+
+    /**
+     * @param done called when the request is answered, or when it wasn't sent at all
+     */
+    private void submit(List<BulkableAction> actions, long committed, Runnable done) {
+        submit(actions, 0, committed, done);
+    }
+
+    /**
+     * Sends the actions in chunks within the bulk limits, each when the previous one was answered, so a huge
+     * transaction neither exceeds the request size ElasticSearch accepts nor holds more than one request in
+     * flight, and its chunks arrive in order, also within a lane.
+     */
+    private void submit(List<BulkableAction> actions, int attempt, long committed, Runnable done) {
+        List<Long> sizes = new ArrayList<>();
+        List<List<BulkableAction>> chunks = chunks(actions, sizes);
+        if (chunks.size() == 1) {
+            if (!submit(actions, sizes.get(0), attempt, committed, done) && done != null) done.run();
+            return;
+        }
+        if (!useAsyncJest) {
+            // a synchronous request is answered when submit returns
+            for (int i = 0; i < chunks.size(); i++) {
+                if (!submit(chunks.get(i), sizes.get(i), attempt, committed, null)) {
+                    notSent(chunks.subList(i + 1, chunks.size()));
+                    break;
+                }
+            }
+            if (done != null) done.run();
+            return;
+        }
+        // each chunk is sent when the previous one is answered, the caller's request is done with the last
+        AtomicInteger next = new AtomicInteger();
+        Runnable sendNext = new Runnable() {
+            @Override
+            public void run() {
+                int i = next.getAndIncrement();
+                if (i >= chunks.size()) {
+                    if (done != null) done.run();
+                } else if (!submit(chunks.get(i), sizes.get(i), attempt, committed, this::sendLater)) {
+                    notSent(chunks.subList(i + 1, chunks.size()));
+                    if (done != null) done.run();
+                }
+            }
+
+            // the previous chunk is answered on the client's thread, which must not wait for the in flight limit
+            private void sendLater() {
+                try {
+                    retries.execute(this);
+                } catch (RejectedExecutionException e) {
+                    run();
+                }
+            }
+        };
+        sendNext.run();
+    }
+
+    /**
+     * Splits the actions into chunks within the bulk limits, keeping their order.
+     * @param sizes gets the estimated size of each chunk
+     */
+    private List<List<BulkableAction>> chunks(List<BulkableAction> actions, List<Long> sizes) {
+        if (actions.size() <= 1) {
+            sizes.add(estimatedSize(actions));
+            return Collections.singletonList(actions);
+        }
+        List<List<BulkableAction>> chunks = new ArrayList<>();
+        List<BulkableAction> chunk = new ArrayList<>();
+        long bytes = 0;
+        for (BulkableAction action : actions) {
+            long size = ElasticSearchBulkQueue.estimatedSize(action, gson);
+            if (!chunk.isEmpty() && (chunk.size() >= bulkMaxActions || bytes + size > bulkMaxBytes)) {
+                chunks.add(chunk);
+                sizes.add(bytes);
+                chunk = new ArrayList<>();
+                bytes = 0;
+            }
+            chunk.add(action);
+            bytes += size;
+        }
+        if (chunks.isEmpty()) {
+            sizes.add(bytes);
+            return Collections.singletonList(actions);
+        }
+        chunks.add(chunk);
+        sizes.add(bytes);
+        return chunks;
+    }
+
+    /**
+     * The chunks after one that couldn't be sent aren't sent either, so a transaction never arrives with a gap.
+     * They follow the spilled chunk into the spill outbox, or go to the dead letters.
+     */
+    private void notSent(List<List<BulkableAction>> chunks) {
+        boolean spilling = spill != null && limiter != null && limiter.getPolicy() == ElasticSearchInFlightLimiter.OverflowPolicy.spill;
+        for (List<BulkableAction> chunk : chunks) {
+            if (spilling) {
+                try {
+                    spill.append(chunk);
+                    continue;
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Error spilling ElasticSearch actions ", e);
+                    spilling = false;
+                }
+            }
+            deadLetters(chunk, "not sent, an earlier chunk of the transaction was not sent");
+        }
+    }
+
+    private long estimatedSize(List<BulkableAction> actions) {
+        long bytes = 0;
+        for (BulkableAction action : actions) {
+            bytes += ElasticSearchBulkQueue.estimatedSize(action, gson);
+        }
+        return bytes;
+    }
+
+    /**
+     * @param done called when the request is answered, not if it wasn't sent
+     * @return whether the request was sent, false if it overflowed the in flight limit
+     */
+    private boolean submit(List<BulkableAction> actions, long bytes, int attempt, long committed, Runnable done) {
         try {
-            Bulk bulk = new Bulk.Builder()
-                    .addAction(actions).build();
-            if (useAsyncJest) {
-                client.executeAsync(bulk, this);
+            if (limiter != null && !limiter.acquire()) {
+                overflow(actions);
+                return false;
             }
-            else {
-                client.execute(bulk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drop(actions);
+            return false;
+        }
+        BulkCallback callback = new BulkCallback(actions, attempt, committed, done);
+        BulkResult result;
+        try {
+            metrics.bulk(bytes);
+            if (useAsyncJest) {
+                transport.bulkAsync(actions, callback);
+                return true;
             }
+            result = transport.bulk(actions);
         } catch (Exception e) {
-            logger.log(Level.WARNING, "Error updating ElasticSearch ", e);
+            callback.failed(e);
+            return true;
         }
+        callback.completed(result);
+        return true;
     }
 
-    private boolean hasLabel(Node node) {
-        for (Label l: node.getLabels()) {
-            if (indexLabels.contains(l.name())) return true;
+    /**
+     * @param done called when the actions are sent again and answered, or given up, so a lane or the next chunk
+     *             of a transaction waits for the retry and later actions for the same documents can't overtake it
+     */
+    private void retry(List<BulkableAction> actions, int attempt, long committed, String reason, Runnable done) {
+        if (attempt >= maxRetries) {
+            deadLetters(actions, "failed " + (attempt + 1) + " times, last with " + reason);
+            if (done != null) done.run();
+            return;
+        }
+        metrics.retried(actions.size());
+        long delay = Math.min(retryDelay << Math.min(attempt, 20), MAX_RETRY_DELAY);
+        // half of the delay is random, so the retries of bulks that failed together spread out
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        try {
+            retries.schedule(() -> submit(actions, attempt + 1, committed, done), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            deadLetters(actions, "not retried after shutdown, failed with " + reason);
+            if (done != null) done.run();
         }
-        return false;
     }
 
-    private boolean hasLabel(LabelEntry labelEntry) {
-        return indexLabels.contains(labelEntry.label().name());
+    private void deadLetters(Collection<BulkableAction> actions, String error) {
+        for (BulkableAction action : actions) {
+            metrics.deadLetter();
+            deadLetters.add(action, error);
+        }
     }
 
-    private boolean hasLabel(PropertyEntry<Node> propEntry) {
-        return hasLabel(propEntry.entity());
+    /**
+     * A version conflict means the document already has the state of a later transaction.
+     */
+    static boolean superseded(BulkResult.BulkResultItem item) {
+        return item.status == 409 && item.error.contains("version_conflict_engine_exception");
     }
-    
-    private Map<IndexId, Index> indexRequests(Node node) {
-        HashMap<IndexId, Index> reqs = new HashMap<>();
 
-        String id = id(node);
-    	if(indexAll != null) {
-    		reqs.put(new IndexId(indexAll, id), new Index.Builder(nodeToJson(node, null))
-            .type(indexAllType)
-            .index(indexAll)
-            .id(id)
-            .build());
-    	}
-        
-        for (Label l: node.getLabels()) {
-            if (!indexLabels.contains(l.name())) continue;
-
-            for (ElasticSearchIndexSpec spec: indexSettings.getIndexSpec().get(l.name())) {
-                String indexName = spec.getIndexName();
-                reqs.put(new IndexId(indexName, id), new Index.Builder(nodeToJson(node, spec.getProperties()))
-                .type(l.name())
-                .index(indexName)
-                .id(id)
-                .build());
+    /**
+     * Failures that may go away by themselves: ElasticSearch being overloaded, unavailable shards and timeouts.
+     * Errors are recognized by their type and the types of their causes, not by their reason, which may name anything.
+     */
+    static boolean retryable(BulkResult.BulkResultItem item) {
+        int status = item.status;
+        if (status == 408 || status == 429 || status == 502 || status == 503 || status == 504) return true;
+        if (item.error == null) return false;
+        JsonElement error;
+        try {
+            error = new JsonParser().parse(item.error);
+        } catch (JsonParseException e) {
+            return false;
+        }
+        while (error != null && error.isJsonObject()) {
+            JsonElement type = error.getAsJsonObject().get("type");
+            if (type != null && type.isJsonPrimitive() && RETRYABLE_ERRORS.contains(type.getAsString())) return true;
+            error = error.getAsJsonObject().get("caused_by");
+        }
+        return false;
+    }
+
+    private void overflow(Collection<BulkableAction> actions) {
+        if (spill != null && limiter.getPolicy() == ElasticSearchInFlightLimiter.OverflowPolicy.spill) {
+            try {
+                spill.append(actions);
+                return;
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error spilling ElasticSearch actions ", e);
             }
         }
-        return reqs;
+        drop(actions);
     }
 
-    private Map<IndexId, Delete> deleteRequests(Node node) {
-        HashMap<IndexId, Delete> reqs = new HashMap<>();
+    private void drop(Collection<BulkableAction> actions) {
+        metrics.dropped(actions.size());
+        long total = metrics.getDropped();
+        long now = System.currentTimeMillis();
+        if (now - lastDropWarning > DROP_WARNING_INTERVAL) {
+            lastDropWarning = now;
+            logger.warning("Too many requests to ElasticSearch in flight, dropped " + total + " actions so far");
+        }
+    }
 
-        String id = id(node);
-    	if(indexAll != null) {
-    		reqs.put(new IndexId(indexAll, id),
-			         new Delete.Builder(id).index(indexAll).build());
-    	}
-        
-    	for (Label l: node.getLabels()) {
-    		if (!indexLabels.contains(l.name())) continue;
-    		for (ElasticSearchIndexSpec spec: indexSettings.getIndexSpec().get(l.name())) {
-    		    String indexName = spec.getIndexName();
-    			reqs.put(new IndexId(indexName, id),
-    			         new Delete.Builder(id).index(indexName).build());
-    		}
-    	}
-    	return reqs;
+    /**
+     * Whether ElasticSearch turned the request, or any of its items, down because its write queue is full.
+     */
+    private boolean rejected(JestResult result) {
+        if (result.getResponseCode() == 429) return true;
+        String error = result.getErrorMessage();
+        if (error != null && error.contains("es_rejected_execution_exception")) return true;
+        if (result instanceof BulkResult && !result.isSucceeded()) {
+            for (BulkResult.BulkResultItem item : ((BulkResult) result).getFailedItems()) {
+                if (item.status == 429) return true;
+            }
+        }
+        return false;
+    }
+
+    ElasticSearchActions indexRequests(Node node, long version) {
+        ElasticSearchActions actions = newActions();
+        indexRequests(node, version, new DocumentCache(), actions);
+        return actions;
     }
-    
-    private Map<IndexId, Delete> deleteRequests(Node node, Label label) {
-        HashMap<IndexId, Delete> reqs = new HashMap<>();
+
+    private void indexRequests(Node node, long version, DocumentCache cache, ElasticSearchActions reqs) {
+        String[] rendered = cache.sources(node);
 
         String id = id(node);
     	if(indexAll != null) {
-    		reqs.put(new IndexId(indexAll, id),
-                    new Delete.Builder(id)
-                              .index(indexAll)
-                              .type(indexAllType)
-                              .build());
+    		reqs.put(indexAllOrdinal, node.getId(), indexAllRequest(node, id, rendered, version));
     	}
-        
-        if (indexLabels.contains(label.name())) {
-            for (ElasticSearchIndexSpec spec: indexSettings.getIndexSpec().get(label.name())) {
-                String indexName = spec.getIndexName();
-                reqs.put(new IndexId(indexName, id),
-                         new Delete.Builder(id)
-                                   .index(indexName)
-                                   .type(label.name())
-                                   .build());
+
+        // of several labels indexed into the same index the last one wins, so only that one is rendered
+        Map<String, String> types = new LinkedHashMap<>(4);
+        Map<String, ElasticSearchIndexSpec> specs = new HashMap<>(4);
+        for (String label : cache.labels(node)) {
+            for (ElasticSearchIndexSpec spec: indexSettings.getIndexSpec().get(label)) {
+                types.put(spec.getIndexName(), label);
+                specs.put(spec.getIndexName(), spec);
             }
         }
-        return reqs;
+        for (Map.Entry<String, String> type : types.entrySet()) {
+            String indexName = type.getKey();
+            ElasticSearchIndexSpec spec = specs.get(indexName);
+            Function<String, Object> values = values(node);
+            Index.Builder builder = new Index.Builder(source(node, plan.projection(spec), rendered))
+                .type(type.getValue())
+                .index(spec.indexName(node.getId(), values))
+                .id(id);
+            parameters(builder::setParameter, version, spec.routing(values));
+            reqs.put(nodeOrdinals.get(indexName), node.getId(), builder.build());
+        }
     }
-    
-    private Map<IndexId, Update> updateRequests(Node node) {
-    	HashMap<IndexId, Update> reqs = new HashMap<>();
 
-    	String id = id(node);
-    	if(indexAll != null) {
-    		reqs.put(new IndexId(indexAll, id),
-			        new Update.Builder(nodeToJson(node, null))
-                			  .type(indexAllType)
-                			  .index(indexAll)
-                			  .id(id(node))
-                			  .build());
-    	}
-    	
-    	for (Label l: node.getLabels()) {
-    		if (!indexLabels.contains(l.name())) continue;
-
-    		for (ElasticSearchIndexSpec spec: indexSettings.getIndexSpec().get(l.name())) {
-    		    String indexName = spec.getIndexName();
-    			reqs.put(new IndexId(indexName, id),
-    			        new Update.Builder(nodeToJson(node, spec.getProperties()))
-                    			  .type(l.name())
-                    			  .index(spec.getIndexName())
-                    			  .id(id(node))
-                    			  .build());
-    		}
-    	}
-    	return reqs;
+    private Index indexAllRequest(Node node, String id, String[] rendered, long version) {
+        Index.Builder builder = new Index.Builder(source(node, ElasticSearchRenderPlan.ALL, rendered))
+                .type(indexAllType)
+                .index(indexAll)
+                .id(id);
+        parameters(builder::setParameter, version, null);
+        return builder.build();
     }
 
-    private String id(Node node) {
-        return String.valueOf(node.getId());
+    /**
+     * Deletes only need the coordinates of the document, so nothing of the deleted entity is read.
+     * @param routing the routing the document was indexed with, null if routed by id
+     */
+    Delete deleteRequest(String indexName, String type, String id, String routing, long version) {
+        Delete.Builder builder = new Delete.Builder(id)
+                .index(indexName)
+                .type(type);
+        parameters(builder::setParameter, version, routing);
+        return builder.build();
     }
 
-    private Map nodeToJson(Node node, Set<String> properties) {
-        Map<String,Object> json = new LinkedHashMap<>();
-        
-        if(indexSettings.getIncludeIDField()) 
-        	json.put("id", id(node));
-        if(indexSettings.getIncludeLabelsField()) 
-        	json.put("labels", labels(node));
-
-        // Write properties one level deeper, to avoid conflicts with "id" and "labels"
-        Map<String,Object> jsonProperties = new LinkedHashMap<>();
-        json.put("properties", jsonProperties);
-
-	    // If specified properties are empty, copy all node properties
-        if(properties == null || properties.isEmpty()) {
-        	for (String prop : node.getPropertyKeys()) {
-        		jsonProperties.put(prop, node.getProperty(prop));
-        	}
-	    // Else, only copy specified properties
-        } else {
-        	for (String prop : properties) {
-	            Object value = node.getProperty(prop);
-	            jsonProperties.put(prop, value);
-	        }
+    ElasticSearchActions indexRequests(Relationship relationship, long version) {
+        ElasticSearchActions actions = newActions();
+        indexRequests(relationship, version, new DocumentCache(), actions);
+        return actions;
+    }
+
+    private void indexRequests(Relationship relationship, long version, DocumentCache cache, ElasticSearchActions reqs) {
+        String type = relationship.getType().name();
+        List<ElasticSearchIndexSpec> specs = indexSettings.getRelationshipIndexSpec().get(type);
+        if (specs == null) return;
+
+        String id = id(relationship);
+        String[] rendered = cache.sources(relationship);
+        Function<String, Object> values = values(relationship);
+        for (ElasticSearchIndexSpec spec: specs) {
+            String indexName = spec.getIndexName();
+            Index.Builder builder = new Index.Builder(source(relationship, plan.projection(spec), rendered))
+                    .type(type)
+                    .index(spec.indexName(relationship.getId(), values))
+                    .id(id);
+            parameters(builder::setParameter, version, spec.routing(values));
+            reqs.put(relationshipOrdinals.get(indexName), relationship.getId(), builder.build());
+        }
+    }
+
+    private void deleteRequests(Relationship relationship, String type, long version, ElasticSearchActions reqs, DocumentCache cache) {
+        String id = id(relationship);
+        for (ElasticSearchIndexSpec spec: indexSettings.getRelationshipIndexSpec().get(type)) {
+            Function<String, Object> previous = key -> cache.previous(relationship, key, true);
+            reqs.put(relationshipOrdinals.get(spec.getIndexName()), relationship.getId(),
+                    deleteRequest(spec.indexName(relationship.getId(), previous), type, id, spec.routing(previous), version));
         }
+    }
 
-        return json;
+    private <T extends PropertyContainer> Map<String, Object> changes(Map<T, Map<String, Object>> changedProperties, T entity) {
+        Map<String, Object> changes = changedProperties.get(entity);
+        if (changes == null) {
+            changes = new LinkedHashMap<>();
+            changedProperties.put(entity, changes);
+        }
+        return changes;
     }
-    
-    private String[] labels(Node node) {
-        List<String> result=new ArrayList<>();
-        for (Label label : node.getLabels()) {
-            result.add(label.name());
+
+    /**
+     * Adds requests for the property changes of an existing node to every index whose projection contains a
+     * changed property, unless the node was already indexed or deleted there in this transaction.
+     */
+    private void propertyRequests(Node node, Map<String, Object> changes, ElasticSearchActions actions, long version, DocumentCache cache) {
+        String[] rendered = cache.sources(node);
+        if (indexAll != null) {
+            propertyRequest(node, node.getId(), indexAll, null, indexAllType, changes, actions, rendered, null, version);
+        }
+        for (String label : cache.labels(node)) {
+            for (ElasticSearchIndexSpec spec: indexSettings.getIndexSpec().get(label)) {
+                propertyRequest(node, node.getId(), spec.getIndexName(), spec, label, changes, actions, rendered,
+                        key -> cache.previous(node, key, false), version);
+            }
         }
-        return result.toArray(new String[result.size()]);
     }
 
-    @Override
-    public void afterRollback(TransactionData transactionData, Collection<BulkableAction> actions) {
+    private void propertyRequests(Relationship relationship, Map<String, Object> changes, ElasticSearchActions actions, long version, DocumentCache cache) {
+        String type = relationship.getType().name();
+        String[] rendered = cache.sources(relationship);
+        for (ElasticSearchIndexSpec spec: indexSettings.getRelationshipIndexSpec().get(type)) {
+            propertyRequest(relationship, relationship.getId(), spec.getIndexName(), spec, type, changes, actions, rendered,
+                    key -> cache.previous(relationship, key, false), version);
+        }
     }
 
-    @Override
-    public void completed(JestResult jestResult) {
-        if (jestResult.isSucceeded() && jestResult.getErrorMessage() == null) {
-            logger.fine("ElasticSearch Update Success");
+    /**
+     * @param spec null for the index for all nodes
+     * @param previous the values of the template and routing properties before the transaction
+     */
+    private void propertyRequest(PropertyContainer entity, long entityId, String indexName, ElasticSearchIndexSpec spec, String type,
+                                 Map<String, Object> changes, ElasticSearchActions actions, String[] rendered,
+                                 Function<String, Object> previous, long version) {
+        boolean relationship = entity instanceof Relationship;
+        int index = spec == null ? indexAllOrdinal : (relationship ? relationshipOrdinals : nodeOrdinals).get(indexName);
+        if (actions.contains(index, entityId)) return;
+        String id = String.valueOf(entityId);
+        Set<String> properties = spec == null ? null : spec.getProperties();
+
+        String concreteIndex = indexName;
+        String routing = null;
+        boolean moved = false;
+        if (spec != null && !spec.getLocationProperties().isEmpty()) {
+            Function<String, Object> values = values(entity);
+            concreteIndex = spec.indexName(entityId, values);
+            routing = spec.routing(values);
+            if (!Collections.disjoint(spec.getLocationProperties(), changes.keySet())) {
+                String previousIndex = spec.indexName(entityId, previous);
+                String previousRouting = spec.routing(previous);
+                if (!previousIndex.equals(concreteIndex) || !Objects.equals(previousRouting, routing)) {
+                    // the document moves to another index or shard, so it is indexed in full there
+                    actions.put((relationship ? relationshipMovedOrdinals : nodeMovedOrdinals).get(indexName), entityId, deleteRequest(previousIndex, type, id, previousRouting, version));
+                    moved = true;
+                }
+            }
+        }
+
+        Map<String, Object> indexedChanges = changes;
+        if (properties != null && !properties.isEmpty()) {
+            indexedChanges = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                if (properties.contains(change.getKey())) indexedChanges.put(change.getKey(), change.getValue());
+            }
+            if (indexedChanges.isEmpty() && !moved) return;
+        }
+
+        if (partialUpdates() && !moved) {
+            // the hash is that of the whole document, so the consistency check doesn't find it stale
+            String hash = indexSettings.getIncludeHashField()
+                    ? ElasticSearchDocumentWriter.hash(source(entity, plan.projection(spec), rendered)) : null;
+            Update.Builder builder = new Update.Builder(writers.get().renderPartial(indexedChanges, hash))
+                    .type(type)
+                    .index(concreteIndex)
+                    .id(id);
+            parameters(builder::setParameter, 0, routing);
+            actions.put(index, entityId, builder.build());
         } else {
-            logger.severe("ElasticSearch Update Failed: " + jestResult.getErrorMessage());
+            Index.Builder builder = new Index.Builder(source(entity, plan.projection(spec), rendered))
+                    .type(type)
+                    .index(concreteIndex)
+                    .id(id);
+            parameters(builder::setParameter, version, routing);
+            actions.put(index, entityId, builder.build());
+        }
+    }
+
+    /**
+     * @return the current values of the properties of the entity, null if missing
+     */
+    private static Function<String, Object> values(PropertyContainer entity) {
+        return key -> entity.getProperty(key, null);
+    }
+
+    private String id(Node node) {
+        return String.valueOf(node.getId());
+    }
+
+    private String id(Relationship relationship) {
+        return String.valueOf(relationship.getId());
+    }
+
+    /**
+     * Renders the source for a projection of the render plan of the node or relationship, reusing an earlier
+     * rendering of the same entity from {@code rendered}, whichever label or index spec asked for it.
+     * Sources are rendered to a string once here, so the bulk queue can account for their size and Jest sends them as is.
+     */
+    private String source(PropertyContainer entity, int projection, String[] rendered) {
+        String source = rendered[projection];
+        if (source == null) {
+            ElasticSearchDocumentWriter writer = writers.get();
+            String[] keys = plan.keys(projection);
+            source = entity instanceof Node ? writer.render((Node) entity, keys) : writer.render((Relationship) entity, keys);
+            rendered[projection] = source;
+            if (projection == ElasticSearchRenderPlan.ALL && !writer.renderedPropertyKeys().isEmpty()) {
+                // a spec listing exactly the entity's properties renders the same document
+                int same = plan.projection(writer.renderedPropertyKeys());
+                if (same > 0) rendered[same] = source;
+            }
         }
+        return source;
     }
 
     @Override
-    public void failed(Exception e) {
-        logger.log(Level.WARNING,"Problem Updating ElasticSearch ",e);
+    public void afterRollback(TransactionData transactionData, Object state) {
+        if (state instanceof ElasticSearchOutbox.Prepared) {
+            ((ElasticSearchOutbox.Prepared) state).rollBack();
+        }
     }
-    
-    private class IndexId {
-        final String indexName, id;
-        public IndexId(String indexName, String id) {
-            this.indexName = indexName;
-            this.id = id;
+
+    /**
+     * What was read and rendered of the entities of one transaction, so an entity that needs actions for
+     * several reasons, e.g. a new label and changed properties, is read once and rendered once per projection.
+     */
+    private class DocumentCache {
+        // the sources by projection of the render plan
+        private final Map<Long, String[]> nodeSources = new HashMap<>();
+        private final Map<Long, String[]> relationshipSources = new HashMap<>();
+        private final Map<Long, List<String>> labels = new HashMap<>();
+        // the values of template and routing properties before the transaction, of the entities that changed them
+        private final Map<Long, Map<String, Object>> previousNodeValues = new HashMap<>();
+        private final Map<Long, Map<String, Object>> previousRelationshipValues = new HashMap<>();
+
+        void previous(PropertyEntry<?> entry, long id, boolean relationship) {
+            (relationship ? previousRelationshipValues : previousNodeValues)
+                    .computeIfAbsent(id, key -> new HashMap<>(2)).put(entry.key(), entry.previouslyCommitedValue());
         }
 
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + getOuterType().hashCode();
-            result = prime * result + ((id == null) ? 0 : id.hashCode());
-            result = prime * result
-                    + ((indexName == null) ? 0 : indexName.hashCode());
-            return result;
+        /**
+         * @param deleted whether the entity was deleted, so only changed values are known
+         * @return the value of the property before the transaction
+         */
+        Object previous(PropertyContainer entity, String key, boolean deleted) {
+            boolean relationship = entity instanceof Relationship;
+            long id = relationship ? ((Relationship) entity).getId() : ((Node) entity).getId();
+            Map<String, Object> values = (relationship ? previousRelationshipValues : previousNodeValues).get(id);
+            if (values != null && values.containsKey(key)) return values.get(key);
+            return deleted ? null : entity.getProperty(key, null);
+        }
+
+        String[] sources(Node node) {
+            return nodeSources.computeIfAbsent(node.getId(), id -> new String[plan.size()]);
+        }
+
+        String[] sources(Relationship relationship) {
+            return relationshipSources.computeIfAbsent(relationship.getId(), id -> new String[plan.size()]);
+        }
+
+        /**
+         * @return the indexed labels of the node
+         */
+        List<String> labels(Node node) {
+            return labels.computeIfAbsent(node.getId(), id -> {
+                List<String> names = new ArrayList<>(2);
+                for (Label label : node.getLabels()) {
+                    if (indexLabels.contains(label.name())) names.add(label.name());
+                }
+                return names;
+            });
+        }
+    }
+
+    /**
+     * Handles the answer to one bulk request, by retrying the actions that failed temporarily, the whole
+     * bulk if the request itself did, and handing the actions that were refused to the dead letters.
+     * The request is only done when its retry is, so nothing sent after it in its lane can overtake the retry.
+     */
+    private class BulkCallback implements JestResultHandler<BulkResult> {
+        private final List<BulkableAction> actions;
+        private final int attempt;
+        private final long committed;
+        private final Runnable done;
+
+        BulkCallback(List<BulkableAction> actions, int attempt, long committed, Runnable done) {
+            this.actions = actions;
+            this.attempt = attempt;
+            this.committed = committed;
+            this.done = done;
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
+        public void completed(BulkResult result) {
+            if (limiter != null) limiter.release(rejected(result));
+            boolean retrying = false;
+            try {
+                retrying = handle(result);
+            } finally {
+                if (!retrying && done != null) done.run();
+            }
+        }
+
+        /**
+         * @return whether actions are retried, which then calls {@code done}
+         */
+        private boolean handle(BulkResult result) {
+            int status = result.getResponseCode();
+            if (status == 429 || status >= 500) {
+                logger.warning("ElasticSearch unavailable (" + status + "), retrying bulk of " + actions.size() + " actions");
+                failedAll();
+                retry(actions, attempt, committed, "status " + status, done);
                 return true;
-            if (obj == null)
-                return false;
-            if (!(obj instanceof IndexId))
-                return false;
-            IndexId other = (IndexId) obj;
-            if (!getOuterType().equals(other.getOuterType()))
-                return false;
-            if (id == null) {
-                if (other.id != null)
-                    return false;
-            } else if (!id.equals(other.id))
+            }
+            metrics.acknowledged(committed);
+            if (result.isSucceeded()) {
+                logger.fine("ElasticSearch Update Success");
+                for (BulkableAction action : actions) {
+                    metrics.succeeded(action.getIndex());
+                }
                 return false;
-            if (indexName == null) {
-                if (other.indexName != null)
-                    return false;
-            } else if (!indexName.equals(other.indexName))
+            }
+            List<BulkResult.BulkResultItem> items = result.getItems();
+            if (items.size() != actions.size()) {
+                // the request was refused as a whole
+                failedAll();
+                deadLetters(actions, result.getErrorMessage());
                 return false;
+            }
+            List<BulkableAction> failed = new ArrayList<>();
+            int i = 0;
+            for (BulkResult.BulkResultItem item : items) {
+                BulkableAction action = actions.get(i++);
+                if (item.error == null || superseded(item)) {
+                    metrics.succeeded(action.getIndex());
+                    continue;
+                }
+                metrics.failed(action.getIndex());
+                if (retryable(item)) failed.add(action);
+                else deadLetters(Collections.singletonList(action), item.error);
+            }
+            if (failed.isEmpty()) return false;
+            logger.warning("ElasticSearch Update Failed for " + failed.size() + " of " + actions.size() + " actions, retrying");
+            retry(failed, attempt, committed, "status " + status, done);
             return true;
         }
-        
-        private ElasticSearchEventHandler getOuterType() {
-            return ElasticSearchEventHandler.this;
-        }
 
         @Override
-        public String toString() {
-            return "IndexId [indexName=" + indexName + ", id=" + id + "]";
+        public void failed(Exception e) {
+            if (limiter != null) limiter.release(false);
+            boolean retrying = false;
+            try {
+                logger.log(Level.WARNING, "Problem Updating ElasticSearch, retrying ", e);
+                failedAll();
+                retry(actions, attempt, committed, e.toString(), done);
+                retrying = true;
+            } finally {
+                if (!retrying && done != null) done.run();
+            }
+        }
+
+        private void failedAll() {
+            for (BulkableAction action : actions) {
+                metrics.failed(action.getIndex());
+            }
         }
     }
 }
@@ -3,11 +3,19 @@ package org.neo4j.elasticsearch;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
 
-import io.searchbox.client.config.HttpClientConfig;
+import org.neo4j.elasticsearch.ElasticSearchKernelExtensionFactory.ElasticSearchSettings;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.kernel.lifecycle.LifecycleAdapter;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.text.ParseException;
 
@@ -18,30 +26,51 @@ import java.text.ParseException;
 public class ElasticSearchExtension extends LifecycleAdapter {
     private final GraphDatabaseService gds;
     private final static Logger logger = Logger.getLogger(ElasticSearchExtension.class.getName());
+    private final static String METRICS_NAME = "org.neo4j.elasticsearch:type=Metrics,instance=";
     private final String hostName;
     private boolean enabled = true;
     private ElasticSearchEventHandler handler;
     private JestClient client;
+    private ElasticSearchTransport transport;
     private ElasticSearchIndexSettings indexSettings;
     private String indexAll;
+    private final Config config;
+    private ElasticSearchOutbox outbox;
+    private ElasticSearchOutboxShipper shipper;
+    private ElasticSearchOutbox spill;
+    private ElasticSearchOutboxShipper spillShipper;
+    private ElasticSearchDeadLetters deadLetters;
+    private ObjectName metricsName;
 
-    public ElasticSearchExtension(GraphDatabaseService gds, String hostName, String indexSpec, String indexAll, Boolean includeIDField, Boolean includeLabelsField) {
-        Map iSpec;
+    public ElasticSearchExtension(GraphDatabaseService gds, Config config) {
+        this(gds, config,
+                config.get(ElasticSearchSettings.hostName),
+                config.get(ElasticSearchSettings.indexSpec),
+                config.get(ElasticSearchSettings.indexAll),
+                config.get(ElasticSearchSettings.includeIDField),
+                config.get(ElasticSearchSettings.includeLabelsField));
+    }
+
+    private ElasticSearchExtension(GraphDatabaseService gds, Config config, String hostName, String indexSpec, String indexAll, Boolean includeIDField, Boolean includeLabelsField) {
+        Map iSpec, rSpec;
         try {
             iSpec = ElasticSearchIndexSpecParser.parseIndexSpec(indexSpec);
-            if (iSpec.size() == 0) {
+            rSpec = ElasticSearchIndexSpecParser.parseRelationshipIndexSpec(indexSpec);
+            if (iSpec.size() == 0 && rSpec.size() == 0) {
                 logger.severe("ElasticSearch Integration: syntax error in index_spec");
                 enabled = false;
             }
-            this.indexSettings = new ElasticSearchIndexSettings(iSpec, includeIDField, includeLabelsField);
+            this.indexSettings = new ElasticSearchIndexSettings(iSpec, rSpec, includeIDField, includeLabelsField);
+            this.indexSettings.setIncludeHashField(config.get(ElasticSearchSettings.includeHashField));
         } catch (ParseException e) {
-            logger.severe("ElasticSearch Integration: Can't define index twice");
+            logger.severe("ElasticSearch Integration: Can't define index twice, or invalid index name template in " + e.getMessage());
             enabled = false;
         }
         logger.info("Elasticsearch Integration: Running " + hostName + " - " + indexSpec);
         this.gds = gds;
         this.hostName = hostName;
         this.indexAll = indexAll;
+        this.config = config;
     }
 
     @Override
@@ -49,7 +78,63 @@ public class ElasticSearchExtension extends LifecycleAdapter {
         if (!enabled) return;
 
         client = getJestClient(hostName);
-        handler = new ElasticSearchEventHandler(client, indexSettings, indexAll);
+        transport = config.get(ElasticSearchSettings.transport) == ElasticSearchTransport.Type.http
+                ? new ElasticSearchHttpTransport(hostName, config)
+                : new ElasticSearchJestTransport(client);
+        handler = new ElasticSearchEventHandler(transport, indexSettings, indexAll);
+        handler.setPartialUpdates(config.get(ElasticSearchSettings.partialUpdates));
+        handler.setExternalVersions(config.get(ElasticSearchSettings.externalVersions));
+        handler.setBulkLimits(config.get(ElasticSearchSettings.bulkMaxActions), config.get(ElasticSearchSettings.bulkMaxBytes));
+        handler.setStatementBridge(((GraphDatabaseAPI) gds).getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class));
+        int renderWorkers = config.get(ElasticSearchSettings.renderWorkers);
+        if (renderWorkers > 0) {
+            handler.setRenderWorkers(gds, renderWorkers);
+        }
+        long flushInterval = config.get(ElasticSearchSettings.bulkFlushInterval);
+        if (flushInterval > 0) {
+            handler.setBulkQueue(new ElasticSearchBulkQueue(handler::submit,
+                    config.get(ElasticSearchSettings.bulkMaxActions),
+                    config.get(ElasticSearchSettings.bulkMaxBytes),
+                    flushInterval));
+        }
+        File deadLetterFile = config.get(ElasticSearchSettings.deadLetterFile);
+        if (deadLetterFile != null) {
+            deadLetters = new ElasticSearchDeadLetters(deadLetterFile);
+            handler.setDeadLetters(deadLetters);
+        }
+        File outboxDirectory = config.get(ElasticSearchSettings.outboxDirectory);
+        if (outboxDirectory != null) {
+            outbox = new ElasticSearchOutbox(outboxDirectory, config.get(ElasticSearchSettings.outboxSegmentSize));
+            handler.setOutbox(outbox);
+            // replays whatever was not acknowledged before the last shutdown
+            shipper = new ElasticSearchOutboxShipper(outbox, transport, config.get(ElasticSearchSettings.bulkMaxBytes));
+            shipper.setMetrics(handler.metrics());
+            if (deadLetters != null) shipper.setDeadLetters(deadLetters);
+            shipper.start();
+        }
+        handler.setRetries(config.get(ElasticSearchSettings.maxRetries), config.get(ElasticSearchSettings.retryDelay));
+        ElasticSearchInFlightLimiter.OverflowPolicy overflowPolicy = config.get(ElasticSearchSettings.overflowPolicy);
+        handler.setInFlightLimiter(new ElasticSearchInFlightLimiter(config.get(ElasticSearchSettings.maxInFlight), overflowPolicy));
+        int lanes = config.get(ElasticSearchSettings.lanes);
+        if (lanes > 0) {
+            handler.setLanes(lanes);
+        } else if (config.get(ElasticSearchSettings.partialUpdates) && config.get(ElasticSearchSettings.externalVersions)) {
+            logger.warning("ElasticSearch partial updates can't be versioned, whole documents are sent without lanes");
+        }
+        if (overflowPolicy == ElasticSearchInFlightLimiter.OverflowPolicy.spill) {
+            File spillDirectory = config.get(ElasticSearchSettings.spillDirectory);
+            if (spillDirectory == null) {
+                logger.warning("ElasticSearch Integration: overflow_policy spill requires spill_dir, overflowing requests are dropped");
+            } else {
+                spill = new ElasticSearchOutbox(spillDirectory, config.get(ElasticSearchSettings.outboxSegmentSize));
+                handler.setSpill(spill);
+                spillShipper = new ElasticSearchOutboxShipper(spill, transport, config.get(ElasticSearchSettings.bulkMaxBytes));
+                spillShipper.setMetrics(handler.metrics());
+                if (deadLetters != null) spillShipper.setDeadLetters(deadLetters);
+                spillShipper.start();
+            }
+        }
+        registerMetrics();
         gds.registerTransactionEventHandler(handler);
         logger.info("Connecting to ElasticSearch");
     }
@@ -58,13 +143,86 @@ public class ElasticSearchExtension extends LifecycleAdapter {
     public void shutdown() throws Throwable {
         if (!enabled) return;
         gds.unregisterTransactionEventHandler(handler);
+        handler.shutdown();
+        unregisterMetrics();
+        if (shipper != null) {
+            shipper.stop();
+            outbox.close();
+        }
+        if (spillShipper != null) {
+            spillShipper.stop();
+            spill.close();
+        }
+        // after the shippers, which send through it
+        transport.close();
         client.shutdownClient();
+        if (deadLetters != null) deadLetters.close();
         logger.info("Disconnected from ElasticSearch");
     }
 
+    ElasticSearchMetrics metrics() {
+        if (!enabled) throw new IllegalStateException("ElasticSearch Integration is not enabled");
+        return handler.metrics();
+    }
+
+    ObjectName metricsName() {
+        return metricsName;
+    }
+
+    /**
+     * Registers the metrics as instance 0, or the next free instance if other databases in the same JVM use the integration.
+     */
+    private void registerMetrics() {
+        try {
+            for (int instance = 0; metricsName == null; instance++) {
+                ObjectName name = new ObjectName(METRICS_NAME + instance);
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(handler.metrics(), name);
+                    metricsName = name;
+                } catch (InstanceAlreadyExistsException e) {
+                    // taken by another database
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error registering ElasticSearch metrics over JMX ", e);
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error unregistering ElasticSearch metrics ", e);
+        }
+        metricsName = null;
+    }
+
+    /**
+     * Indexes all nodes and relationships from scratch, e.g. for the initial import.
+     */
+    public ElasticSearchReindexer.Stats reindex() throws InterruptedException {
+        if (!enabled) throw new IllegalStateException("ElasticSearch Integration is not enabled");
+        return new ElasticSearchReindexer((GraphDatabaseAPI) gds, handler, client,
+                config.get(ElasticSearchSettings.reindexBulkSize),
+                config.get(ElasticSearchSettings.reindexMaxInFlight),
+                config.get(ElasticSearchSettings.reindexParallelism)).reindex();
+    }
+
+    /**
+     * Compares the documents in ElasticSearch with the graph, and repairs the differences if asked to.
+     */
+    public ElasticSearchConsistencyChecker.Stats check(boolean repair) throws InterruptedException {
+        if (!enabled) throw new IllegalStateException("ElasticSearch Integration is not enabled");
+        return new ElasticSearchConsistencyChecker((GraphDatabaseAPI) gds, handler, client,
+                config.get(ElasticSearchSettings.checkChunkSize),
+                config.get(ElasticSearchSettings.checkParallelism),
+                config.get(ElasticSearchSettings.checkMaxRequestsPerSecond), repair).check();
+    }
+
     private JestClient getJestClient(final String hostName) throws Throwable {
-        JestClientFactory factory = new JestClientFactory();
-        factory.setHttpClientConfig(new HttpClientConfig.Builder(hostName).multiThreaded(true).readTimeout(60000).build());
+        JestClientFactory factory = new CompressingJestClientFactory(config.get(ElasticSearchSettings.compression));
+        factory.setHttpClientConfig(JestDefaultHttpConfigFactory.getConfigFor(hostName, config));
         return factory.getObject();
     }
 }
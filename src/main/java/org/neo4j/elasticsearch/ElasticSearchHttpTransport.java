@@ -0,0 +1,221 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.params.Parameters;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.neo4j.elasticsearch.ElasticSearchKernelExtensionFactory.ElasticSearchSettings;
+import org.neo4j.kernel.configuration.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the bulk bodies directly, as one action line and one source line per action, and sends them with a
+ * pooled async http client, round robin to the configured servers.
+ *
+ * The sources rendered by the handler are strings already, so unlike the Jest bulk no map is built and
+ * serialized with Gson per action. The answer is parsed into the same {@link BulkResult} as with Jest.
+ */
+class ElasticSearchHttpTransport implements ElasticSearchTransport {
+    private final static Logger logger = Logger.getLogger(ElasticSearchHttpTransport.class.getName());
+    // parses the answers, which doesn't depend on the actions of the bulk
+    private final static Bulk RESULTS = new Bulk.Builder().build();
+
+    private final Gson gson = new Gson();
+    private final List<String> servers;
+    private final AtomicInteger next = new AtomicInteger();
+    private final CloseableHttpAsyncClient client;
+    private final boolean compression;
+
+    public ElasticSearchHttpTransport(String hostNames, Config config) {
+        this(JestDefaultHttpConfigFactory.servers(hostNames),
+                config.get(ElasticSearchSettings.maxConnections),
+                config.get(ElasticSearchSettings.maxConnectionsPerRoute),
+                config.get(ElasticSearchSettings.keepAlive),
+                (int) (long) config.get(ElasticSearchSettings.connectTimeout),
+                (int) (long) config.get(ElasticSearchSettings.readTimeout),
+                config.get(ElasticSearchSettings.compression));
+    }
+
+    /**
+     * @param keepAlive how long a connection is kept open for reuse, in milliseconds
+     */
+    ElasticSearchHttpTransport(List<String> servers, int maxConnections, int maxConnectionsPerRoute, long keepAlive,
+                               int connectTimeout, int readTimeout, boolean compression) {
+        this.servers = servers;
+        this.compression = compression;
+        this.client = HttpAsyncClients.custom()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                // like the idle time of Jest, ElasticSearch doesn't send a keep alive header
+                .setKeepAliveStrategy((response, context) -> keepAlive)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .build())
+                .build();
+        this.client.start();
+    }
+
+    @Override
+    public BulkResult bulk(List<BulkableAction> actions) throws IOException {
+        return await(send(body(actions)));
+    }
+
+    @Override
+    public BulkResult bulk(String body) throws IOException {
+        return await(send(body(body)));
+    }
+
+    private BulkResult await(CompletableFuture<BulkResult> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for ElasticSearch", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void bulkAsync(List<BulkableAction> actions, JestResultHandler<BulkResult> handler) {
+        CompletableFuture<BulkResult> result;
+        try {
+            result = send(body(actions));
+        } catch (IOException e) {
+            handler.failed(e);
+            return;
+        }
+        result.whenComplete((bulkResult, e) -> {
+            if (e == null) handler.completed(bulkResult);
+            else handler.failed(e instanceof Exception ? (Exception) e : new Exception(e));
+        });
+    }
+
+    private CompletableFuture<BulkResult> send(ByteArrayEntity body) {
+        HttpPost post = new HttpPost(server() + "/_bulk");
+        post.setEntity(body);
+        CompletableFuture<BulkResult> result = new CompletableFuture<>();
+        client.execute(post, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    String body = response.getEntity() == null ? null : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                    result.complete(RESULTS.createNewElasticSearchResult(body, response.getStatusLine().getStatusCode(),
+                            response.getStatusLine().getReasonPhrase(), gson));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                result.completeExceptionally(new CancellationException("ElasticSearch bulk request cancelled"));
+            }
+        });
+        return result;
+    }
+
+    private String server() {
+        String server = servers.get(Math.floorMod(next.getAndIncrement(), servers.size()));
+        return server.endsWith("/") ? server.substring(0, server.length() - 1) : server;
+    }
+
+    ByteArrayEntity body(List<BulkableAction> actions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(actions.size() * 256);
+        OutputStream out = compression ? new GZIPOutputStream(bytes) : bytes;
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            for (BulkableAction action : actions) {
+                writeActionLine(writer, action);
+                String source = action.getData(gson);
+                if (source != null) {
+                    writer.write(source);
+                    writer.write('\n');
+                }
+            }
+        }
+        return entity(bytes);
+    }
+
+    ByteArrayEntity body(String lines) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(lines.length() + 16);
+        OutputStream out = compression ? new GZIPOutputStream(bytes) : bytes;
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            writer.write(lines);
+        }
+        return entity(bytes);
+    }
+
+    private ByteArrayEntity entity(ByteArrayOutputStream bytes) {
+        ByteArrayEntity entity = new ByteArrayEntity(bytes.toByteArray(), ContentType.APPLICATION_JSON);
+        if (compression) entity.setContentEncoding("gzip");
+        return entity;
+    }
+
+    private void writeActionLine(Writer writer, BulkableAction action) throws IOException {
+        writer.write("{\"");
+        writer.write(action.getBulkMethodName());
+        writer.write("\":{");
+        // same order as in the bodies of Jest
+        boolean first = writeField(writer, "_id", action.getId(), true);
+        first = writeField(writer, "_index", action.getIndex(), first);
+        first = writeField(writer, "_type", action.getType(), first);
+        for (String parameter : Parameters.ACCEPTED_IN_BULK) {
+            Collection<Object> values = action.getParameter(parameter);
+            if (values == null || values.isEmpty()) continue;
+            first = writeField(writer, "_" + parameter, String.valueOf(values.iterator().next()), first);
+        }
+        writer.write("}}\n");
+    }
+
+    private boolean writeField(Writer writer, String name, String value, boolean first) throws IOException {
+        if (value == null || value.isEmpty()) return first;
+        if (!first) writer.write(',');
+        writer.write('"');
+        writer.write(name);
+        writer.write("\":");
+        writer.write(gson.toJson(value));
+        return false;
+    }
+
+    @Override
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing the ElasticSearch http client ", e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.neo4j.elasticsearch;
+
+/**
+ * Bounds the number of bulk requests that are sent to ElasticSearch at the same time.
+ *
+ * The limit adapts to ElasticSearch: it is halved whenever a request is rejected because the
+ * write thread pool of ElasticSearch is full, and grows by one again after a limit's worth of
+ * requests went through, up to the configured maximum.
+ */
+class ElasticSearchInFlightLimiter {
+
+    /**
+     * What happens to a bulk when the limit is reached.
+     */
+    enum OverflowPolicy {
+        /** wait for a request to finish, which holds up the committing thread */
+        block,
+        /** write the bulk to a local outbox, from where it is sent later */
+        spill,
+        /** discard the bulk */
+        drop
+    }
+
+    private final int maxInFlight;
+    private final OverflowPolicy policy;
+    private int limit;
+    private int inFlight;
+    private int succeeded;
+
+    public ElasticSearchInFlightLimiter(int maxInFlight, OverflowPolicy policy) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.policy = policy;
+        this.limit = this.maxInFlight;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return whether a request may be sent, false if the limit is reached and the policy isn't to block
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            if (policy != OverflowPolicy.block) return false;
+            wait();
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * @param rejected whether ElasticSearch rejected the request for lack of capacity
+     */
+    public synchronized void release(boolean rejected) {
+        inFlight--;
+        if (rejected) {
+            limit = Math.max(1, limit / 2);
+            succeeded = 0;
+        } else if (limit < maxInFlight && ++succeeded >= limit) {
+            limit++;
+            succeeded = 0;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until no request is in flight anymore.
+     * @return whether all requests finished within the time
+     */
+    public synchronized boolean awaitIdle(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        long remaining;
+        while (inFlight > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return inFlight == 0;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int limit() {
+        return limit;
+    }
+}
@@ -1,15 +1,23 @@
 package org.neo4j.elasticsearch;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 public class ElasticSearchIndexSettings {
     private Map<String, List<ElasticSearchIndexSpec>> indexSpec;
+    private Map<String, List<ElasticSearchIndexSpec>> relationshipIndexSpec;
     private boolean includeIDField;
     private boolean includeLabelsField;
+    private boolean includeHashField;
 
     public ElasticSearchIndexSettings(Map indexSpec, boolean includeIDField, boolean includeLabelsField) {
+        this(indexSpec, Collections.emptyMap(), includeIDField, includeLabelsField);
+    }
+
+    public ElasticSearchIndexSettings(Map indexSpec, Map relationshipIndexSpec, boolean includeIDField, boolean includeLabelsField) {
     	this.indexSpec = indexSpec;
+    	this.relationshipIndexSpec = relationshipIndexSpec;
     	this.includeIDField = includeIDField;
     	this.includeLabelsField = includeLabelsField;
     }
@@ -17,6 +25,12 @@ public class ElasticSearchIndexSettings {
     public Map<String, List<ElasticSearchIndexSpec>> getIndexSpec() {
     	return indexSpec;
     }
+    /**
+     * The relationship index specs by relationship type.
+     */
+    public Map<String, List<ElasticSearchIndexSpec>> getRelationshipIndexSpec() {
+    	return relationshipIndexSpec;
+    }
     public boolean getIncludeIDField() {
     	return includeIDField;
     }
@@ -29,4 +43,10 @@ public class ElasticSearchIndexSettings {
     public void setIncludeLabelsField(boolean value) {
         includeLabelsField = value;
     }
+    public boolean getIncludeHashField() {
+        return includeHashField;
+    }
+    public void setIncludeHashField(boolean value) {
+        includeHashField = value;
+    }
 }
@@ -1,32 +1,192 @@
 package org.neo4j.elasticsearch;
 
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * The index and properties of a label or relationship type, and optionally the property whose value routes
+ * the documents to a shard, e.g. {@code people:Person(name)@tenant_id}.
+ *
+ * The index name can be a template, so documents are spread over several concrete indexes:
+ * {@code {id%4}} is replaced by the id of the entity modulo 4, {@code {created:yyyy.MM}} by the date in the
+ * property {@code created}, formatted with the pattern in UTC. Dates are epoch milliseconds or ISO-8601 strings,
+ * entities without a date go to the index with {@code none} in its place.
+ */
 class ElasticSearchIndexSpec {
+    private final static Pattern PLACEHOLDER = Pattern.compile("\\{(?:id%(?<shards>[0-9]+)|(?<property>[A-Za-z0-9_]+):(?<format>[^{}]+))\\}");
+    final static String NONE = "none";
 
     private String indexName;
 	private Set<String> properties = new LinkedHashSet<String>();
-    
+    // literal strings, Integer shard counts and Date placeholders, null if the index name is no template
+    private final List<Object> template;
+    private final Set<String> templateProperties;
+    private final String routingProperty;
+    private final Set<String> locationProperties;
+
     public ElasticSearchIndexSpec(String indexName, Set<String> properties) {
+        this(indexName, properties, null);
+    }
+
+    /**
+     * @param routingProperty the property routing the documents, null to route them by id
+     * @throws IllegalArgumentException for placeholders other than {@code {id%n}} and {@code {property:pattern}}
+     */
+    public ElasticSearchIndexSpec(String indexName, Set<String> properties, String routingProperty) {
         this.indexName = indexName;
         this.properties = properties;
+        this.routingProperty = routingProperty;
+        if (PLACEHOLDER.matcher(indexName).replaceAll("").matches(".*[{}].*")) {
+            throw new IllegalArgumentException("Invalid index name template " + indexName);
+        }
+        Matcher matcher = PLACEHOLDER.matcher(indexName);
+        boolean isTemplate = matcher.find();
+        this.template = isTemplate ? new ArrayList<>() : null;
+        this.templateProperties = isTemplate ? new LinkedHashSet<>() : Collections.emptySet();
+        if (isTemplate) parseTemplate(matcher);
+        Set<String> location = new LinkedHashSet<>(templateProperties);
+        if (routingProperty != null) location.add(routingProperty);
+        this.locationProperties = location;
     }
-    
+
+    private void parseTemplate(Matcher matcher) {
+        int last = 0;
+        do {
+            if (matcher.start() > last) template.add(indexName.substring(last, matcher.start()));
+            if (matcher.group("shards") != null) {
+                template.add(Math.max(1, Integer.parseInt(matcher.group("shards"))));
+            } else {
+                template.add(new Date(matcher.group("property"), matcher.group("format")));
+                templateProperties.add(matcher.group("property"));
+            }
+            last = matcher.end();
+        } while (matcher.find());
+        if (last < indexName.length()) template.add(indexName.substring(last));
+    }
+
+    /**
+     * @return the name of the index, or its template
+     */
     public String getIndexName() {
 		return indexName;
 	}
-    
+
     public Set<String> getProperties() {
 		return properties;
 	}
 
+    public boolean isTemplate() {
+        return template != null;
+    }
+
+    /**
+     * @return the properties the concrete index depends on
+     */
+    public Set<String> getTemplateProperties() {
+        return templateProperties;
+    }
+
+    public String getRoutingProperty() {
+        return routingProperty;
+    }
+
+    /**
+     * @return the properties the concrete index or the routing depend on, so changing them moves the document
+     */
+    public Set<String> getLocationProperties() {
+        return locationProperties;
+    }
+
+    /**
+     * @param properties the values of the properties, null if missing
+     * @return the routing of the entity's document, null to route it by id
+     */
+    public String routing(Function<String, Object> properties) {
+        if (routingProperty == null) return null;
+        Object value = properties.apply(routingProperty);
+        return value == null || value.getClass().isArray() ? null : value.toString();
+    }
+
+    /**
+     * @return the index name with * for every placeholder, matching all concrete indexes
+     */
+    public String getIndexPattern() {
+        return PLACEHOLDER.matcher(indexName).replaceAll("*");
+    }
+
+    /**
+     * @param properties the values of the template properties, null if missing
+     * @return the concrete index for the entity
+     */
+    public String indexName(long id, Function<String, Object> properties) {
+        if (template == null) return indexName;
+        StringBuilder name = new StringBuilder(indexName.length() + 8);
+        for (Object part : template) {
+            if (part instanceof Integer) name.append(Math.floorMod(id, (long) (Integer) part));
+            else if (part instanceof Date) name.append(((Date) part).format(properties.apply(((Date) part).property)));
+            else name.append(part);
+        }
+        return name.toString();
+    }
+
 	public String toString() {
         String s = this.getClass().getSimpleName() + " " + indexName + ": (";
         for (String p: properties) {
             s += p + ",";
         }
         s += ")";
+        if (routingProperty != null) s += "@" + routingProperty;
         return s;
     }
+
+    private static class Date {
+        final String property;
+        final DateTimeFormatter format;
+
+        Date(String property, String format) {
+            this.property = property;
+            this.format = DateTimeFormatter.ofPattern(format, Locale.ROOT).withZone(ZoneOffset.UTC);
+        }
+
+        String format(Object value) {
+            TemporalAccessor date = date(value);
+            // index names must be lower case
+            return date == null ? NONE : format.format(date).toLowerCase(Locale.ROOT);
+        }
+
+        private static TemporalAccessor date(Object value) {
+            if (value instanceof Number) return Instant.ofEpochMilli(((Number) value).longValue());
+            if (!(value instanceof String)) return null;
+            String text = (String) value;
+            try {
+                return Instant.parse(text);
+            } catch (DateTimeParseException e) {
+                // not an instant
+            }
+            try {
+                return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC);
+            } catch (DateTimeParseException e) {
+                // not a date with time
+            }
+            try {
+                return LocalDate.parse(text).atStartOfDay().toInstant(ZoneOffset.UTC);
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+    }
 }
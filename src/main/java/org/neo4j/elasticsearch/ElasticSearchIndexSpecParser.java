@@ -8,19 +8,39 @@ import java.util.regex.Pattern;
 import org.neo4j.graphdb.DynamicLabel;
 import org.neo4j.graphdb.Label;
 
-import static java.util.Collections.singletonList;
-
 public class ElasticSearchIndexSpecParser {
     
-    private final static Pattern INDEX_SPEC_RE = Pattern.compile("(?<indexname>[a-z][a-z_-]+):(?<label>[A-Za-z0-9]+)\\((?<props>[^\\)]+)\\)");
+    // index names can contain templates like {id%4} or {created:yyyy.MM}
+    private final static String INDEX_NAME_RE = "(?<indexname>[a-z][a-z0-9_.-]*(?:\\{[^{}]+\\}[a-z0-9_.-]*)*)";
+    // an optional property routing the documents follows the properties, e.g. (name)@tenant_id
+    private final static String ROUTING_RE = "(?:@(?<routing>[A-Za-z0-9_]+))?";
+    private final static Pattern INDEX_SPEC_RE = Pattern.compile(INDEX_NAME_RE + ":(?<label>[A-Za-z0-9]+)\\((?<props>[^\\)]+)\\)" + ROUTING_RE);
+    private final static Pattern RELATIONSHIP_INDEX_SPEC_RE = Pattern.compile(INDEX_NAME_RE + ":\\[(?<type>[A-Za-z0-9_]+)\\]\\((?<props>[^\\)]+)\\)" + ROUTING_RE);
     private final static Pattern PROPS_SPEC_RE = Pattern.compile("((?!=,)([A-Za-z0-9_]+))+");
     
+    /**
+     * Parses the node index specs, e.g. {@code people:Person(name),people_search:Person(name,bio)}.
+     * A label may be indexed into several indexes, each with its own properties.
+     * @return the specs by label
+     */
     public static Map<String, List<ElasticSearchIndexSpec>> parseIndexSpec(String spec) throws ParseException {
+        return parse(INDEX_SPEC_RE, "label", spec);
+    }
+
+    /**
+     * Parses the relationship index specs, written with the relationship type in brackets, e.g. {@code edges:[KNOWS](since,weight)}.
+     * @return the specs by relationship type
+     */
+    public static Map<String, List<ElasticSearchIndexSpec>> parseRelationshipIndexSpec(String spec) throws ParseException {
+        return parse(RELATIONSHIP_INDEX_SPEC_RE, "type", spec);
+    }
+
+    private static Map<String, List<ElasticSearchIndexSpec>> parse(Pattern pattern, String group, String spec) throws ParseException {
         if (spec == null) {
             return Collections.emptyMap();
         }
         Map<String, List<ElasticSearchIndexSpec>> map = new LinkedHashMap<>();
-        Matcher matcher = INDEX_SPEC_RE.matcher(spec);
+        Matcher matcher = pattern.matcher(spec);
         while (matcher.find()) {
 
             Matcher propsMatcher = PROPS_SPEC_RE.matcher(matcher.group("props"));
@@ -29,12 +49,20 @@ public class ElasticSearchIndexSpecParser {
                 props.add(propsMatcher.group());
             }
             
-            String label = matcher.group("label");
+            String label = matcher.group(group);
+            String indexName = matcher.group("indexname");
             
-            if (map.containsKey(label)) {
-            	throw new ParseException(matcher.group(), 0);
+            // a label can be indexed into several indexes, but only once into each
+            List<ElasticSearchIndexSpec> specs = map.computeIfAbsent(label, key -> new ArrayList<>(2));
+            for (ElasticSearchIndexSpec existing : specs) {
+                if (existing.getIndexName().equals(indexName)) throw new ParseException(matcher.group(), 0);
+            }
+            try {
+                specs.add(new ElasticSearchIndexSpec(indexName, props, matcher.group("routing")));
+            } catch (IllegalArgumentException e) {
+                // an invalid date pattern in the template
+                throw new ParseException(matcher.group(), 0);
             }
-            map.put(label,singletonList(new ElasticSearchIndexSpec(matcher.group("indexname"), props)));
         }
         
         return map;
@@ -0,0 +1,43 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sends the bulk requests through a Jest client.
+ */
+class ElasticSearchJestTransport implements ElasticSearchTransport {
+    private final JestClient client;
+
+    public ElasticSearchJestTransport(JestClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public BulkResult bulk(List<BulkableAction> actions) throws IOException {
+        return client.execute(new Bulk.Builder().addAction(actions).build());
+    }
+
+    @Override
+    public BulkResult bulk(String body) throws IOException {
+        return client.execute(new RawBulk(body));
+    }
+
+    @Override
+    public void bulkAsync(List<BulkableAction> actions, JestResultHandler<BulkResult> handler) {
+        client.executeAsync(new Bulk.Builder().addAction(actions).build(), handler);
+    }
+
+    /**
+     * The client is shut down by whoever created it, it is used for more than bulks.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -9,6 +9,8 @@ import org.neo4j.kernel.extension.KernelExtensionFactory;
 import org.neo4j.kernel.impl.spi.KernelContext;
 import org.neo4j.kernel.lifecycle.Lifecycle;
 
+import java.io.File;
+
 import static org.neo4j.kernel.configuration.Settings.*;
 
 /**
@@ -21,11 +23,74 @@ public class ElasticSearchKernelExtensionFactory extends KernelExtensionFactory<
 
     @Description("Settings for the Elastic Search Extension")
     public static abstract class ElasticSearchSettings {
+        @Description("Url of ElasticSearch, several comma separated urls are used round robin")
         public static Setting<String> hostName = setting("elasticsearch.host_name", STRING, (String) null);
+        @Description("Time to wait for a connection to ElasticSearch")
+        public static Setting<Long> connectTimeout = setting("elasticsearch.connect_timeout", DURATION, "5s");
+        @Description("Time to wait for the answer to a request to ElasticSearch")
+        public static Setting<Long> readTimeout = setting("elasticsearch.read_timeout", DURATION, "60s");
+        @Description("Maximum number of connections to ElasticSearch")
+        public static Setting<Integer> maxConnections = setting("elasticsearch.max_connections", INTEGER, "32");
+        @Description("Maximum number of connections to one ElasticSearch node, should not be below max_in_flight")
+        public static Setting<Integer> maxConnectionsPerRoute = setting("elasticsearch.max_connections_per_route", INTEGER, "16");
+        @Description("Time an idle connection is kept open to be reused, 0 keeps it until the server closes it")
+        public static Setting<Long> keepAlive = setting("elasticsearch.keep_alive", DURATION, "60s");
+        @Description("Send the request bodies gzip compressed")
+        public static Setting<Boolean> compression = setting("elasticsearch.compression", BOOLEAN, "false");
+        @Description("Send the requests round robin to all nodes of the cluster with http enabled, discovered from the configured urls")
+        public static Setting<Boolean> discovery = setting("elasticsearch.discovery", BOOLEAN, "false");
+        @Description("Interval in which the nodes of the cluster are discovered again")
+        public static Setting<Long> discoveryInterval = setting("elasticsearch.discovery_interval", DURATION, "1m");
+        @Description("How the bulk requests of committed changes are sent: through the Jest client, or with http, which writes the bulk bodies directly and doesn't support discovery")
+        public static Setting<ElasticSearchTransport.Type> transport = setting("elasticsearch.transport", options(ElasticSearchTransport.Type.class), "jest");
         public static Setting<String> indexSpec = setting("elasticsearch.index_spec", STRING, (String) null);
         public static Setting<Boolean> includeIDField = setting("elasticsearch.include_id_field", BOOLEAN, "true");
         public static Setting<Boolean> includeLabelsField = setting("elasticsearch.include_labels_field", BOOLEAN, "true");
+        @Description("Include a hash of the document in the hash field, so elasticsearch.check() can find stale documents without fetching their sources")
+        public static Setting<Boolean> includeHashField = setting("elasticsearch.include_hash_field", BOOLEAN, "false");
         public static Setting<String> indexAll = setting("elasticsearch.index_all", STRING, (String) null);
+        @Description("Maximum time committed changes are held back to be combined with other transactions into one bulk request, 0 sends one bulk per transaction")
+        public static Setting<Long> bulkFlushInterval = setting("elasticsearch.bulk_flush_interval", DURATION, "0");
+        @Description("Maximum number of actions in a bulk request, larger transactions are split")
+        public static Setting<Integer> bulkMaxActions = setting("elasticsearch.bulk_max_actions", INTEGER, "1000");
+        @Description("Maximum estimated size of a bulk request, larger transactions are split")
+        public static Setting<Long> bulkMaxBytes = setting("elasticsearch.bulk_max_bytes", BYTES, "5m");
+        @Description("Send only the changed properties of existing nodes as partial updates instead of the whole document")
+        public static Setting<Boolean> partialUpdates = setting("elasticsearch.partial_updates", BOOLEAN, "false");
+        @Description("Number of threads rendering the documents after the commit, 0 renders them in the committing thread")
+        public static Setting<Integer> renderWorkers = setting("elasticsearch.render_workers", INTEGER, "0");
+        @Description("Send documents with the version of their transaction as external version, so ElasticSearch ignores changes that arrive after a later one")
+        public static Setting<Boolean> externalVersions = setting("elasticsearch.external_versions", BOOLEAN, "false");
+        @Description("Directory of the outbox that records committed changes until ElasticSearch acknowledged them, no outbox is used if not set")
+        public static Setting<File> outboxDirectory = setting("elasticsearch.outbox_dir", PATH, (String) null);
+        @Description("Size of the memory mapped outbox segment files")
+        public static Setting<Long> outboxSegmentSize = setting("elasticsearch.outbox_segment_size", BYTES, "64m");
+        @Description("Maximum number of bulk requests sent to ElasticSearch at the same time, lowered automatically while ElasticSearch rejects requests")
+        public static Setting<Integer> maxInFlight = setting("elasticsearch.max_in_flight", INTEGER, "16");
+        @Description("Number of lanes with one bulk request in flight each, the changes of a document always go through the same lane so they arrive in commit order, 0 sends them without lanes")
+        public static Setting<Integer> lanes = setting("elasticsearch.lanes", INTEGER, "0");
+        @Description("What happens to a bulk request when max_in_flight requests are outstanding: block the committing thread, spill it to spill_dir, or drop it")
+        public static Setting<ElasticSearchInFlightLimiter.OverflowPolicy> overflowPolicy = setting("elasticsearch.overflow_policy", options(ElasticSearchInFlightLimiter.OverflowPolicy.class), "block");
+        @Description("Directory that bulk requests are spilled to with overflow_policy=spill")
+        public static Setting<File> spillDirectory = setting("elasticsearch.spill_dir", PATH, (String) null);
+        @Description("Number of times actions that failed temporarily, e.g. because ElasticSearch was overloaded, are sent again")
+        public static Setting<Integer> maxRetries = setting("elasticsearch.max_retries", INTEGER, "5");
+        @Description("Delay before the first retry of failed actions, doubled for every further retry")
+        public static Setting<Long> retryDelay = setting("elasticsearch.retry_delay", DURATION, "100ms");
+        @Description("File that actions ElasticSearch refused, or that failed max_retries times, are appended to, they are only logged if not set")
+        public static Setting<File> deadLetterFile = setting("elasticsearch.dead_letter_file", PATH, (String) null);
+        @Description("Number of documents per bulk request when reindexing all nodes")
+        public static Setting<Integer> reindexBulkSize = setting("elasticsearch.reindex_bulk_size", INTEGER, "5000");
+        @Description("Maximum number of bulk requests outstanding at the same time when reindexing all nodes")
+        public static Setting<Integer> reindexMaxInFlight = setting("elasticsearch.reindex_max_in_flight", INTEGER, "4");
+        @Description("Number of threads reading and rendering nodes when reindexing, 0 uses one per processor")
+        public static Setting<Integer> reindexParallelism = setting("elasticsearch.reindex_parallelism", INTEGER, "0");
+        @Description("Number of ids whose documents the consistency check looks up in one request")
+        public static Setting<Integer> checkChunkSize = setting("elasticsearch.check_chunk_size", INTEGER, "1000");
+        @Description("Number of chunks the consistency check works on at the same time")
+        public static Setting<Integer> checkParallelism = setting("elasticsearch.check_parallelism", INTEGER, "2");
+        @Description("Maximum number of lookups and repairs per second the consistency check sends to ElasticSearch, 0 doesn't limit them")
+        public static Setting<Integer> checkMaxRequestsPerSecond = setting("elasticsearch.check_max_requests_per_second", INTEGER, "20");
         // todo settings for label, property, indexName
     }
 
@@ -35,14 +100,7 @@ public class ElasticSearchKernelExtensionFactory extends KernelExtensionFactory<
 
     @Override
     public Lifecycle newInstance(KernelContext kernelContext, Dependencies dependencies) throws Throwable {
-        Config config = dependencies.getConfig();
-        
-        return new ElasticSearchExtension(dependencies.getGraphDatabaseService(),
-                config.get(ElasticSearchSettings.hostName),
-                config.get(ElasticSearchSettings.indexSpec),
-                config.get(ElasticSearchSettings.indexAll),
-                config.get(ElasticSearchSettings.includeIDField),
-                config.get(ElasticSearchSettings.includeLabelsField));
+        return new ElasticSearchExtension(dependencies.getGraphDatabaseService(), dependencies.getConfig());
     }
 
     public interface Dependencies {
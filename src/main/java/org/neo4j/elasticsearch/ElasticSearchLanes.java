@@ -0,0 +1,127 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends bulk requests in a fixed number of lanes, so the actions for a document arrive at ElasticSearch in the
+ * order they were submitted.
+ *
+ * The actions for a document always go to the same lane, chosen by index and id. A lane has at most one bulk
+ * request in flight, actions submitted meanwhile are collected and sent together when the request is answered.
+ */
+class ElasticSearchLanes {
+
+    interface Sender {
+        /**
+         * @param done to be called when the request is answered, or when it wasn't sent at all
+         */
+        void send(List<BulkableAction> actions, long committed, Runnable done);
+    }
+
+    private final Lane[] lanes;
+    private final Sender sender;
+    private final Executor executor;
+    private int busy;
+
+    /**
+     * @param executor sends the collected actions of a lane, so the thread that answered a request isn't held up
+     */
+    public ElasticSearchLanes(int lanes, Sender sender, Executor executor) {
+        this.lanes = new Lane[Math.max(1, lanes)];
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new Lane();
+        }
+        this.sender = sender;
+        this.executor = executor;
+    }
+
+    public int size() {
+        return lanes.length;
+    }
+
+    int lane(BulkableAction action) {
+        return Math.floorMod(Objects.hash(action.getIndex(), action.getId()), lanes.length);
+    }
+
+    public void submit(Collection<BulkableAction> actions, long committed) {
+        if (lanes.length == 1) {
+            lanes[0].submit(new ArrayList<>(actions), committed);
+            return;
+        }
+        List<List<BulkableAction>> parts = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (BulkableAction action : actions) {
+            parts.get(lane(action)).add(action);
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            if (!parts.get(i).isEmpty()) lanes[i].submit(parts.get(i), committed);
+        }
+    }
+
+    /**
+     * Waits until no lane has a request in flight or actions waiting.
+     * @return false if the time ran out before
+     */
+    public synchronized boolean awaitIdle(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (busy > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private synchronized void busy(int delta) {
+        busy += delta;
+        if (busy == 0) notifyAll();
+    }
+
+    private class Lane {
+        private boolean sending;
+        private List<BulkableAction> pending = new ArrayList<>();
+        private long pendingCommitted;
+
+        void submit(List<BulkableAction> actions, long committed) {
+            synchronized (this) {
+                if (sending) {
+                    if (pending.isEmpty()) pendingCommitted = committed;
+                    pending.addAll(actions);
+                    return;
+                }
+                sending = true;
+            }
+            busy(1);
+            sender.send(actions, committed, this::done);
+        }
+
+        private void done() {
+            List<BulkableAction> next;
+            long committed;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    sending = false;
+                    busy(-1);
+                    return;
+                }
+                next = pending;
+                committed = pendingCommitted;
+                pending = new ArrayList<>();
+            }
+            try {
+                executor.execute(() -> sender.send(next, committed, this::done));
+            } catch (RejectedExecutionException e) {
+                sender.send(next, committed, this::done);
+            }
+        }
+    }
+}
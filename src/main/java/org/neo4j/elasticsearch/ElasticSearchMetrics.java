@@ -0,0 +1,268 @@
+package org.neo4j.elasticsearch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counts what the integration does, from the work in the commit path to the acknowledgement by ElasticSearch.
+ *
+ * Recording is lock free and cheap enough to be done for every transaction.
+ */
+class ElasticSearchMetrics implements ElasticSearchMetricsMXBean {
+    private final static IntSupplier NONE = () -> 0;
+
+    private final Histogram beforeCommitMicros = new Histogram();
+    private final Histogram actionsPerTransaction = new Histogram();
+    private final Histogram bulkBytes = new Histogram();
+    private final Histogram ackLagMillis = new Histogram();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder deadLetters = new LongAdder();
+    private final Map<String, LongAdder> succeeded = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> failed = new ConcurrentHashMap<>();
+    private volatile IntSupplier inFlight = NONE;
+    private volatile IntSupplier inFlightLimit = NONE;
+    private volatile IntSupplier queueSize = NONE;
+
+    public void beforeCommit(long nanos) {
+        beforeCommitMicros.record(nanos / 1000);
+    }
+
+    public void actions(int actions) {
+        actionsPerTransaction.record(actions);
+    }
+
+    public void bulk(long bytes) {
+        bulkBytes.record(bytes);
+    }
+
+    /**
+     * @param committed the commit time of the oldest transaction in the acknowledged bulk
+     */
+    public void acknowledged(long committed) {
+        ackLagMillis.record(Math.max(0, System.currentTimeMillis() - committed));
+    }
+
+    public void succeeded(String index) {
+        counter(succeeded, index).increment();
+    }
+
+    public void failed(String index) {
+        counter(failed, index).increment();
+    }
+
+    public void retried(int actions) {
+        retried.add(actions);
+    }
+
+    public void dropped(int actions) {
+        dropped.add(actions);
+    }
+
+    public void deadLetter() {
+        deadLetters.increment();
+    }
+
+    public void setInFlight(IntSupplier inFlight, IntSupplier inFlightLimit) {
+        this.inFlight = inFlight;
+        this.inFlightLimit = inFlightLimit;
+    }
+
+    public void setQueueSize(IntSupplier queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    private static LongAdder counter(Map<String, LongAdder> counters, String index) {
+        return counters.computeIfAbsent(String.valueOf(index), k -> new LongAdder());
+    }
+
+    private static Map<String, Long> values(Map<String, LongAdder> counters) {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((index, counter) -> values.put(index, counter.sum()));
+        return values;
+    }
+
+    @Override
+    public long getTransactions() {
+        return beforeCommitMicros.count();
+    }
+
+    @Override
+    public double getBeforeCommitMeanMicros() {
+        return beforeCommitMicros.mean();
+    }
+
+    @Override
+    public long getBeforeCommitP99Micros() {
+        return beforeCommitMicros.percentile(0.99);
+    }
+
+    @Override
+    public long getBeforeCommitMaxMicros() {
+        return beforeCommitMicros.max();
+    }
+
+    @Override
+    public double getActionsPerTransactionMean() {
+        return actionsPerTransaction.mean();
+    }
+
+    @Override
+    public long getActionsPerTransactionMax() {
+        return actionsPerTransaction.max();
+    }
+
+    @Override
+    public long getBulks() {
+        return bulkBytes.count();
+    }
+
+    @Override
+    public double getBulkBytesMean() {
+        return bulkBytes.mean();
+    }
+
+    @Override
+    public long getBulkBytesMax() {
+        return bulkBytes.max();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.getAsInt();
+    }
+
+    @Override
+    public int getInFlightLimit() {
+        return inFlightLimit.getAsInt();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queueSize.getAsInt();
+    }
+
+    @Override
+    public long getAckLagP50Millis() {
+        return ackLagMillis.percentile(0.5);
+    }
+
+    @Override
+    public long getAckLagP99Millis() {
+        return ackLagMillis.percentile(0.99);
+    }
+
+    @Override
+    public long getAckLagMaxMillis() {
+        return ackLagMillis.max();
+    }
+
+    @Override
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getDeadLetters() {
+        return deadLetters.sum();
+    }
+
+    @Override
+    public Map<String, Long> getSucceededByIndex() {
+        return values(succeeded);
+    }
+
+    @Override
+    public Map<String, Long> getFailedByIndex() {
+        return values(failed);
+    }
+
+    /**
+     * All metrics by name, with the per index counters as {@code succeeded.<index>} and {@code failed.<index>}.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        metrics.put("transactions", getTransactions());
+        metrics.put("before_commit_mean_micros", getBeforeCommitMeanMicros());
+        metrics.put("before_commit_p99_micros", getBeforeCommitP99Micros());
+        metrics.put("before_commit_max_micros", getBeforeCommitMaxMicros());
+        metrics.put("actions_per_transaction_mean", getActionsPerTransactionMean());
+        metrics.put("actions_per_transaction_max", getActionsPerTransactionMax());
+        metrics.put("bulks", getBulks());
+        metrics.put("bulk_bytes_mean", getBulkBytesMean());
+        metrics.put("bulk_bytes_max", getBulkBytesMax());
+        metrics.put("in_flight", getInFlight());
+        metrics.put("in_flight_limit", getInFlightLimit());
+        metrics.put("queue_size", getQueueSize());
+        metrics.put("ack_lag_p50_millis", getAckLagP50Millis());
+        metrics.put("ack_lag_p99_millis", getAckLagP99Millis());
+        metrics.put("ack_lag_max_millis", getAckLagMaxMillis());
+        metrics.put("retried", getRetried());
+        metrics.put("dropped", getDropped());
+        metrics.put("dead_letters", getDeadLetters());
+        getSucceededByIndex().forEach((index, count) -> metrics.put("succeeded." + index, count));
+        getFailedByIndex().forEach((index, count) -> metrics.put("failed." + index, count));
+        return metrics;
+    }
+
+    /**
+     * Counts values into buckets by powers of two, which is precise enough for latencies and sizes
+     * and needs no locking.
+     */
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry until the max is set or a larger value was recorded concurrently
+            }
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * @return the upper bound of the bucket that contains the given fraction of the values, at most the max
+         */
+        public long percentile(double fraction) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(i == 0 ? 0 : (1L << i) - 1, max());
+            }
+            return max();
+        }
+    }
+}
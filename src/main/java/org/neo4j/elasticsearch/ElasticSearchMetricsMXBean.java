@@ -0,0 +1,50 @@
+package org.neo4j.elasticsearch;
+
+import java.util.Map;
+
+/**
+ * The metrics of the ElasticSearch integration as exposed over JMX, as {@code org.neo4j.elasticsearch:type=Metrics,instance=0}.
+ * Percentiles are approximated to the next power of two.
+ */
+public interface ElasticSearchMetricsMXBean {
+
+    long getTransactions();
+
+    double getBeforeCommitMeanMicros();
+
+    long getBeforeCommitP99Micros();
+
+    long getBeforeCommitMaxMicros();
+
+    double getActionsPerTransactionMean();
+
+    long getActionsPerTransactionMax();
+
+    long getBulks();
+
+    double getBulkBytesMean();
+
+    long getBulkBytesMax();
+
+    int getInFlight();
+
+    int getInFlightLimit();
+
+    int getQueueSize();
+
+    long getAckLagP50Millis();
+
+    long getAckLagP99Millis();
+
+    long getAckLagMaxMillis();
+
+    long getRetried();
+
+    long getDropped();
+
+    long getDeadLetters();
+
+    Map<String, Long> getSucceededByIndex();
+
+    Map<String, Long> getFailedByIndex();
+}
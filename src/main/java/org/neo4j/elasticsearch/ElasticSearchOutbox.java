@@ -0,0 +1,326 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Bulk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of bulk request bodies, written before they are sent to ElasticSearch.
+ *
+ * Records are appended to memory mapped segment files as {@code [length][crc32][state][bulk lines]}, a new segment
+ * is started when the current one is full and on every restart. Records of a transaction are prepared before it
+ * commits and marked as committed or rolled back afterwards. Reading stops at a prepared record until it is marked,
+ * rolled back records are skipped, and prepared records from before a restart are read like committed ones, as it
+ * isn't known whether their transaction committed. A position in the outbox is the segment number
+ * in the upper and the offset within the segment in the lower 32 bits. The position up to which ElasticSearch
+ * acknowledged the records is kept in a separate checkpoint file, fully acknowledged segments are deleted.
+ */
+class ElasticSearchOutbox implements Closeable {
+    private final static Logger logger = Logger.getLogger(ElasticSearchOutbox.class.getName());
+    private final static Pattern SEGMENT_RE = Pattern.compile("outbox-(\\d+)\\.seg");
+    private final static String CHECKPOINT = "outbox.ack";
+    private final static int HEADER_SIZE = 12;
+    private final static int PREPARED = 0;
+    private final static int COMMITTED = 1;
+    private final static int ROLLED_BACK = 2;
+
+    private final File directory;
+    private final long segmentSize;
+    private final Gson gson = new Gson();
+
+    // the segment the outbox was opened with, records in earlier ones are from before the restart
+    private final int firstSegment;
+    private int writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private volatile long writePosition;
+    private volatile long acknowledged;
+
+    private int readSegment = -1;
+    private MappedByteBuffer readBuffer;
+
+    public ElasticSearchOutbox(File directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.min(Math.max(segmentSize, 1024), Integer.MAX_VALUE);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create outbox directory " + directory);
+        }
+        List<Integer> segments = segments();
+        this.acknowledged = readCheckpoint(segments.isEmpty() ? 0 : segments.get(0));
+        // never append to a segment that was written before, its tail may be torn
+        int lastSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        this.writeSegment = Math.max(lastSegment, segment(acknowledged)) + 1;
+        this.firstSegment = writeSegment;
+        this.writeBuffer = map(writeSegment, this.segmentSize, FileChannel.MapMode.READ_WRITE);
+        this.writePosition = position(writeSegment, 0);
+        logger.info("ElasticSearch outbox " + directory + " opened, replaying from segment " + segment(acknowledged));
+    }
+
+    /**
+     * Appends the bulk request body for the given actions, as Jest would have sent it.
+     */
+    public long append(Collection<BulkableAction> actions) throws IOException {
+        return append(new Bulk.Builder().addAction(actions).build().getData(gson));
+    }
+
+    public synchronized long append(String bulkLines) throws IOException {
+        write(bulkLines, COMMITTED);
+        notifyAll();
+        return writePosition;
+    }
+
+    /**
+     * Appends the bulk request bodies for the chunks of a transaction that is about to commit, they are
+     * read once they are marked as committed.
+     */
+    public synchronized Prepared prepare(List<? extends Collection<BulkableAction>> chunks) throws IOException {
+        Prepared prepared = new Prepared();
+        try {
+            for (Collection<BulkableAction> chunk : chunks) {
+                int offset = write(new Bulk.Builder().addAction(chunk).build().getData(gson), PREPARED);
+                prepared.buffers.add(writeBuffer);
+                prepared.offsets.add(offset);
+            }
+        } catch (IOException e) {
+            prepared.rollBack();
+            throw e;
+        }
+        notifyAll();
+        return prepared;
+    }
+
+    /**
+     * @return the offset of the record in the current segment
+     */
+    private int write(String bulkLines, int state) throws IOException {
+        byte[] bytes = bulkLines.getBytes(StandardCharsets.UTF_8);
+        int offset = offset(writePosition);
+        if (offset + HEADER_SIZE + bytes.length > writeBuffer.capacity()) {
+            writeBuffer.force();
+            writeSegment++;
+            writeBuffer = map(writeSegment, Math.max(segmentSize, HEADER_SIZE + bytes.length), FileChannel.MapMode.READ_WRITE);
+            offset = 0;
+        }
+        // MappedByteBuffer.duplicate() only exists since Java 13
+        ByteBuffer record = ((ByteBuffer) writeBuffer).duplicate();
+        record.position(offset + 4);
+        record.putInt(crc(bytes, 0, bytes.length));
+        record.putInt(state);
+        record.put(bytes);
+        // the length is written last, a torn record reads as the end of the segment
+        writeBuffer.putInt(offset, bytes.length);
+        writePosition = position(writeSegment, offset + HEADER_SIZE + bytes.length);
+        return offset;
+    }
+
+    /**
+     * Reads as many whole records from the given position as fit into {@code maxBytes}, but at least one,
+     * waiting up to {@code timeout} milliseconds for new records. Returns null if there are none.
+     */
+    public Batch read(long from, long maxBytes, long timeout) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (from == writePosition && timeout > 0) {
+                wait(timeout);
+            }
+        }
+        long end = writePosition;
+        StringBuilder body = new StringBuilder();
+        int records = 0;
+        int skipped = 0;
+        long bytes = 0;
+        long position = from;
+        while (position != end) {
+            int segment = segment(position);
+            int offset = offset(position);
+            ByteBuffer buffer = readBuffer(segment);
+            byte[] record = buffer == null ? null : record(buffer, segment, offset);
+            if (record == null) {
+                if (segment >= segment(end)) break;
+                position = position(segment + 1, 0);
+                continue;
+            }
+            int state = buffer.getInt(offset + 8);
+            if (state == PREPARED && segment >= firstSegment) {
+                // later records wait for the transaction that is still committing
+                if (records == 0 && skipped == 0) awaitMarked(buffer, offset, timeout);
+                break;
+            }
+            if (state == ROLLED_BACK) {
+                skipped++;
+                position = position(segment, offset + HEADER_SIZE + record.length);
+                continue;
+            }
+            if (records > 0 && bytes + record.length > maxBytes) break;
+            body.append(new String(record, StandardCharsets.UTF_8));
+            bytes += record.length;
+            records++;
+            position = position(segment, offset + HEADER_SIZE + record.length);
+        }
+        if (records == 0 && skipped == 0) return null;
+        return new Batch(body.toString(), records, position);
+    }
+
+    private synchronized void awaitMarked(ByteBuffer buffer, int offset, long timeout) throws InterruptedException {
+        if (timeout > 0 && buffer.getInt(offset + 8) == PREPARED) {
+            wait(timeout);
+        }
+    }
+
+    public long acknowledged() {
+        return acknowledged;
+    }
+
+    public long writePosition() {
+        return writePosition;
+    }
+
+    public synchronized void acknowledge(long position) throws IOException {
+        File tmp = new File(directory, CHECKPOINT + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+            file.setLength(0);
+            file.writeLong(position);
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(directory, CHECKPOINT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        acknowledged = position;
+        for (Integer segment : segments()) {
+            if (segment >= segment(position) || segment >= writeSegment) break;
+            if (!segmentFile(segment).delete()) {
+                logger.warning("Can't delete acknowledged outbox segment " + segmentFile(segment));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writeBuffer.force();
+        notifyAll();
+    }
+
+    private byte[] record(ByteBuffer buffer, int segment, int offset) {
+        if (offset + HEADER_SIZE > buffer.capacity()) return null;
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) return null;
+        byte[] bytes = new byte[length];
+        ByteBuffer data = buffer.duplicate();
+        data.position(offset + HEADER_SIZE);
+        data.get(bytes);
+        if (crc(bytes, 0, length) != buffer.getInt(offset + 4)) {
+            logger.warning("Skipping corrupt outbox record in " + segmentFile(segment) + " at " + offset);
+            return null;
+        }
+        return bytes;
+    }
+
+    private ByteBuffer readBuffer(int segment) throws IOException {
+        if (segment != readSegment) {
+            readSegment = segment;
+            readBuffer = segmentFile(segment).exists() ? map(segment, 0, FileChannel.MapMode.READ_ONLY) : null;
+        }
+        return readBuffer;
+    }
+
+    private MappedByteBuffer map(int segment, long size, FileChannel.MapMode mode) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            if (size > file.length()) file.setLength(size);
+            return file.getChannel().map(mode, 0, file.length());
+        }
+    }
+
+    private long readCheckpoint(int firstSegment) throws IOException {
+        File checkpoint = new File(directory, CHECKPOINT);
+        if (!checkpoint.exists()) return position(firstSegment, 0);
+        try (RandomAccessFile file = new RandomAccessFile(checkpoint, "r")) {
+            return file.readLong();
+        }
+    }
+
+    private List<Integer> segments() {
+        List<Integer> segments = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) return segments;
+        for (String name : names) {
+            Matcher matcher = SEGMENT_RE.matcher(name);
+            if (matcher.matches()) segments.add(Integer.parseInt(matcher.group(1)));
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("outbox-%010d.seg", segment));
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    static long position(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    static int segment(long position) {
+        return (int) (position >>> 32);
+    }
+
+    static int offset(long position) {
+        return (int) position;
+    }
+
+    /**
+     * The records of a transaction that is about to commit.
+     */
+    class Prepared {
+        private final List<ByteBuffer> buffers = new ArrayList<>(1);
+        private final List<Integer> offsets = new ArrayList<>(1);
+
+        public void commit() {
+            mark(COMMITTED);
+        }
+
+        public void rollBack() {
+            mark(ROLLED_BACK);
+        }
+
+        private void mark(int state) {
+            synchronized (ElasticSearchOutbox.this) {
+                for (int i = 0; i < buffers.size(); i++) {
+                    buffers.get(i).putInt(offsets.get(i) + 8, state);
+                }
+                ElasticSearchOutbox.this.notifyAll();
+            }
+        }
+    }
+
+    static class Batch {
+        final String body;
+        final int records;
+        final long end;
+
+        Batch(String body, int records, long end) {
+            this.body = body;
+            this.records = records;
+            this.end = end;
+        }
+    }
+}
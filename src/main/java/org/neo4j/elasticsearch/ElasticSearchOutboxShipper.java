@@ -0,0 +1,168 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.searchbox.core.BulkResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the records of an {@link ElasticSearchOutbox} to ElasticSearch in order, starting at the last
+ * acknowledged position. A batch is only acknowledged after ElasticSearch answered it, failed requests and
+ * the actions that failed temporarily are retried with a growing delay, so records are delivered at least once.
+ * Actions that ElasticSearch refused go to the dead letters like those sent directly.
+ *
+ * Batches are sent one at a time through the transport of the handler, so neither the bulk queue, the in flight
+ * limit nor the lanes apply, the records are already combined up to the maximum bulk size and strictly ordered.
+ * Bulks, retries, dead letters and the actions per index are counted in the metrics of the handler.
+ */
+class ElasticSearchOutboxShipper implements Runnable {
+    private final static Logger logger = Logger.getLogger(ElasticSearchOutboxShipper.class.getName());
+    private final static long POLL_INTERVAL = 1000;
+    private final static long MAX_RETRY_DELAY = 30000;
+    private final static JsonParser parser = new JsonParser();
+
+    private final ElasticSearchOutbox outbox;
+    private final ElasticSearchTransport transport;
+    private final long maxBytes;
+    private ElasticSearchDeadLetters deadLetters = new ElasticSearchDeadLetters();
+    private ElasticSearchMetrics metrics = new ElasticSearchMetrics();
+    private volatile boolean running;
+    private Thread thread;
+
+    public ElasticSearchOutboxShipper(ElasticSearchOutbox outbox, ElasticSearchTransport transport, long maxBytes) {
+        this.outbox = outbox;
+        this.transport = transport;
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    }
+
+    public void setDeadLetters(ElasticSearchDeadLetters deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
+    public void setMetrics(ElasticSearchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "elasticsearch-outbox-shipper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(POLL_INTERVAL * 5);
+        }
+    }
+
+    @Override
+    public void run() {
+        long retryDelay = 100;
+        ElasticSearchOutbox.Batch batch = null;
+        String pending = null;
+        while (running) {
+            try {
+                if (batch == null) {
+                    batch = outbox.read(outbox.acknowledged(), maxBytes, POLL_INTERVAL);
+                    if (batch == null) continue;
+                    pending = batch.body;
+                }
+                // a batch of rolled back records only moves the acknowledged position
+                pending = pending.isEmpty() ? null : ship(pending);
+                if (pending == null) {
+                    outbox.acknowledge(batch.end);
+                    batch = null;
+                    retryDelay = 100;
+                } else {
+                    Thread.sleep(retryDelay);
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Error reading ElasticSearch outbox ", e);
+            }
+        }
+    }
+
+    /**
+     * Sends the bulk lines, hands the actions that ElasticSearch refused to the dead letters.
+     *
+     * @return the lines of the actions to send again, null when none are left
+     */
+    String ship(String body) {
+        try {
+            metrics.bulk(body.getBytes(StandardCharsets.UTF_8).length);
+            BulkResult result = transport.bulk(body);
+            int status = result.getResponseCode();
+            if (status == 429 || status >= 500) {
+                logger.warning("ElasticSearch unavailable (" + status + "), retrying outbox batch");
+                metrics.retried(requests(body).size());
+                return body;
+            }
+            List<String> requests = requests(body);
+            List<BulkResult.BulkResultItem> items = result.getItems();
+            if (items.size() != requests.size()) {
+                if (result.isSucceeded()) return null;
+                // the request was refused as a whole
+                for (String request : requests) {
+                    metrics.deadLetter();
+                    deadLetters.add(request, result.getErrorMessage());
+                }
+                return null;
+            }
+            StringBuilder failed = new StringBuilder();
+            int retried = 0;
+            for (int i = 0; i < items.size(); i++) {
+                BulkResult.BulkResultItem item = items.get(i);
+                if (item.error == null || ElasticSearchEventHandler.superseded(item)) {
+                    metrics.succeeded(item.index);
+                    continue;
+                }
+                metrics.failed(item.index);
+                if (ElasticSearchEventHandler.retryable(item)) {
+                    failed.append(requests.get(i));
+                    retried++;
+                } else {
+                    metrics.deadLetter();
+                    deadLetters.add(requests.get(i), item.error);
+                }
+            }
+            if (retried == 0) return null;
+            metrics.retried(retried);
+            logger.warning("ElasticSearch Update Failed for " + retried + " of " + items.size() + " outbox actions, retrying");
+            return failed.toString();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Problem sending ElasticSearch outbox, retrying ", e);
+            metrics.retried(requests(body).size());
+            return body;
+        }
+    }
+
+    /**
+     * Splits bulk lines into the lines of each action, a delete has no source line.
+     */
+    static List<String> requests(String body) {
+        List<String> requests = new ArrayList<>();
+        String[] lines = body.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].isEmpty()) continue;
+            JsonObject action = parser.parse(lines[i]).getAsJsonObject();
+            if (action.has("delete") || i + 1 == lines.length) {
+                requests.add(lines[i] + "\n");
+            } else {
+                requests.add(lines[i] + "\n" + lines[++i] + "\n");
+            }
+        }
+        return requests;
+    }
+}
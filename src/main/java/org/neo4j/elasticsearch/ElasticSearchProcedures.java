@@ -0,0 +1,93 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.kernel.extension.KernelExtensions;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Procedure;
+
+import java.util.stream.Stream;
+
+/**
+ * Procedures to operate the ElasticSearch integration, e.g. {@code CALL elasticsearch.reindex()},
+ * {@code CALL elasticsearch.repair()} or {@code CALL elasticsearch.metrics()}.
+ */
+public class ElasticSearchProcedures {
+
+    @Context
+    public GraphDatabaseAPI db;
+
+    @Procedure("elasticsearch.reindex")
+    public Stream<ReindexResult> reindex() throws Exception {
+        ElasticSearchReindexer.Stats stats = extension().reindex();
+        return Stream.of(new ReindexResult(stats));
+    }
+
+    @Procedure("elasticsearch.check")
+    public Stream<CheckResult> check() throws Exception {
+        return Stream.of(new CheckResult(extension().check(false)));
+    }
+
+    @Procedure("elasticsearch.repair")
+    public Stream<CheckResult> repair() throws Exception {
+        return Stream.of(new CheckResult(extension().check(true)));
+    }
+
+    @Procedure("elasticsearch.metrics")
+    public Stream<MetricResult> metrics() {
+        return extension().metrics().snapshot().entrySet().stream()
+                .map(metric -> new MetricResult(metric.getKey(), metric.getValue()));
+    }
+
+    private ElasticSearchExtension extension() {
+        return db.getDependencyResolver().resolveDependency(KernelExtensions.class)
+                .resolveDependency(ElasticSearchExtension.class);
+    }
+
+    public static class ReindexResult {
+        public long nodes;
+        public long relationships;
+        public long documents;
+        public long failed;
+        public long millis;
+
+        public ReindexResult(ElasticSearchReindexer.Stats stats) {
+            this.nodes = stats.nodes;
+            this.relationships = stats.relationships;
+            this.documents = stats.documents;
+            this.failed = stats.failed;
+            this.millis = stats.millis;
+        }
+    }
+
+    public static class CheckResult {
+        public long entities;
+        public long documents;
+        public long missing;
+        public long stale;
+        public long orphaned;
+        public long repaired;
+        public long failed;
+        public long millis;
+
+        public CheckResult(ElasticSearchConsistencyChecker.Stats stats) {
+            this.entities = stats.entities;
+            this.documents = stats.documents;
+            this.missing = stats.missing;
+            this.stale = stats.stale;
+            this.orphaned = stats.orphaned;
+            this.repaired = stats.repaired;
+            this.failed = stats.failed;
+            this.millis = stats.millis;
+        }
+    }
+
+    public static class MetricResult {
+        public String name;
+        public Number value;
+
+        public MetricResult(String name, Number value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.store.id.IdGeneratorFactory;
+import org.neo4j.kernel.impl.store.id.IdType;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Indexes all nodes and relationships of the graph from scratch, without going through the transaction event handler.
+ *
+ * The nodes of each indexed label are found with the label scan store, in parallel per label, and read in parallel
+ * in chunks of ids, each in its own read transaction. A node with several indexed labels is only read for the first.
+ * With an index for all nodes every node is indexed, so the node id space is split into ranges instead, as it
+ * is for relationships, whose types can't be scanned. The entities are rendered with the same index specs as the
+ * event handler and sent as fixed size bulks, with at most {@code maxInFlight} bulk requests outstanding at any time.
+ */
+class ElasticSearchReindexer {
+    private final static Logger logger = Logger.getLogger(ElasticSearchReindexer.class.getName());
+    // number of ids a single task reads in one transaction
+    private final static long RANGE_SIZE = 50000;
+
+    private final GraphDatabaseAPI db;
+    private final ElasticSearchEventHandler handler;
+    private final JestClient client;
+    private final int bulkSize;
+    private final int maxInFlight;
+    private final int parallelism;
+    private final Semaphore inFlight;
+
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong relationships = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public ElasticSearchReindexer(GraphDatabaseAPI db, ElasticSearchEventHandler handler, JestClient client,
+                                  int bulkSize, int maxInFlight, int parallelism) {
+        this.db = db;
+        this.handler = handler;
+        this.client = client;
+        this.bulkSize = Math.max(1, bulkSize);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.inFlight = new Semaphore(this.maxInFlight);
+    }
+
+    public Stats reindex() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        IdGeneratorFactory ids = db.getDependencyResolver().resolveDependency(IdGeneratorFactory.class);
+        long highRelationshipId = handler.indexesRelationships() ? ids.get(IdType.RELATIONSHIP).getHighId() : 0;
+        List<Label> labels = new ArrayList<>();
+        for (String label : handler.indexedLabels()) {
+            labels.add(Label.label(label));
+        }
+        if (handler.indexesAllNodes()) {
+            logger.info("ElasticSearch reindex of up to " + ids.get(IdType.NODE).getHighId() + " nodes and " + highRelationshipId + " relationships started");
+        } else {
+            logger.info("ElasticSearch reindex of the nodes labeled " + labels + " and up to " + highRelationshipId + " relationships started");
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            if (handler.indexesAllNodes()) {
+                pool.invoke(new Range(0, ids.get(IdType.NODE).getHighId(), false));
+            } else {
+                List<LabelScan> scans = new ArrayList<>();
+                for (int i = 0; i < labels.size(); i++) {
+                    scans.add(new LabelScan(labels.get(i), labels.subList(0, i)));
+                }
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(scans);
+                    }
+                });
+            }
+            if (highRelationshipId > 0) pool.invoke(new Range(0, highRelationshipId, true));
+        } finally {
+            pool.shutdown();
+        }
+        // wait for the outstanding bulks
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+
+        Stats stats = new Stats(nodes.get(), relationships.get(), documents.get(), failed.get(), System.currentTimeMillis() - start);
+        logger.info("ElasticSearch reindex finished: " + stats);
+        return stats;
+    }
+
+    private void submit(List<BulkableAction> actions) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.addAndGet(actions.size());
+            return;
+        }
+        final int size = actions.size();
+        client.executeAsync(new Bulk.Builder().addAction(actions).build(), new JestResultHandler<BulkResult>() {
+            @Override
+            public void completed(BulkResult result) {
+                int failures = result.isSucceeded() ? 0 : result.getFailedItems().size();
+                // no items at all means the whole request was rejected
+                if (failures == 0 && !result.isSucceeded()) failures = size;
+                documents.addAndGet(size - failures);
+                failed.addAndGet(failures);
+                inFlight.release();
+            }
+
+            @Override
+            public void failed(Exception e) {
+                logger.log(Level.WARNING, "Problem reindexing ElasticSearch ", e);
+                failed.addAndGet(size);
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Adds the actions to the bulk, and sends it when it is full.
+     *
+     * @return the bulk to add the next actions to
+     */
+    private List<BulkableAction> add(List<BulkableAction> bulk, Collection<? extends BulkableAction> actions) {
+        bulk.addAll(actions);
+        if (bulk.size() < bulkSize) return bulk;
+        submit(bulk);
+        return new ArrayList<>(bulkSize);
+    }
+
+    private Collection<? extends BulkableAction> node(Node node) {
+        nodes.incrementAndGet();
+        return handler.indexRequests(node, handler.nextVersion()).values();
+    }
+
+    /**
+     * Collects the ids of the nodes with a label, and reads them in chunks in parallel.
+     */
+    private class LabelScan extends RecursiveAction {
+        private final Label label;
+        // the labels scanned before, whose nodes are already indexed
+        private final List<Label> scanned;
+
+        LabelScan(Label label, List<Label> scanned) {
+            this.label = label;
+            this.scanned = scanned;
+        }
+
+        @Override
+        protected void compute() {
+            List<LabeledNodes> chunks = new ArrayList<>();
+            long[] ids = new long[(int) RANGE_SIZE];
+            int count = 0;
+            try (Transaction tx = db.beginTx(); ResourceIterator<Node> found = db.findNodes(label)) {
+                while (found.hasNext()) {
+                    ids[count++] = found.next().getId();
+                    if (count == ids.length) {
+                        chunks.add(fork(ids, count));
+                        ids = new long[(int) RANGE_SIZE];
+                        count = 0;
+                    }
+                }
+                tx.success();
+            }
+            if (count > 0) chunks.add(fork(ids, count));
+            for (LabeledNodes chunk : chunks) {
+                chunk.join();
+            }
+        }
+
+        private LabeledNodes fork(long[] ids, int count) {
+            LabeledNodes chunk = new LabeledNodes(Arrays.copyOf(ids, count), scanned);
+            chunk.fork();
+            return chunk;
+        }
+    }
+
+    private class LabeledNodes extends RecursiveAction {
+        private final long[] ids;
+        private final List<Label> scanned;
+
+        LabeledNodes(long[] ids, List<Label> scanned) {
+            this.ids = ids;
+            this.scanned = scanned;
+        }
+
+        @Override
+        protected void compute() {
+            List<BulkableAction> bulk = new ArrayList<>(bulkSize);
+            try (Transaction tx = db.beginTx()) {
+                for (long id : ids) {
+                    Node node;
+                    try {
+                        node = db.getNodeById(id);
+                        if (hasAny(node, scanned)) continue;
+                    } catch (NotFoundException e) {
+                        continue;
+                    }
+                    bulk = add(bulk, node(node));
+                }
+                tx.success();
+            }
+            if (!bulk.isEmpty()) submit(bulk);
+        }
+
+        private boolean hasAny(Node node, List<Label> labels) {
+            for (Label label : labels) {
+                if (node.hasLabel(label)) return true;
+            }
+            return false;
+        }
+    }
+
+    private class Range extends RecursiveAction {
+        private final long from, to;
+        private final boolean forRelationships;
+
+        Range(long from, long to, boolean forRelationships) {
+            this.from = from;
+            this.to = to;
+            this.forRelationships = forRelationships;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > RANGE_SIZE) {
+                long middle = from + (to - from) / 2;
+                invokeAll(new Range(from, middle, forRelationships), new Range(middle, to, forRelationships));
+                return;
+            }
+            List<BulkableAction> bulk = new ArrayList<>(bulkSize);
+            try (Transaction tx = db.beginTx()) {
+                for (long id = from; id < to; id++) {
+                    try {
+                        bulk = add(bulk, forRelationships ? relationship(id) : node(db.getNodeById(id)));
+                    } catch (NotFoundException e) {
+                        continue;
+                    }
+                }
+                tx.success();
+            }
+            if (!bulk.isEmpty()) submit(bulk);
+        }
+
+        private Collection<? extends BulkableAction> relationship(long id) {
+            Relationship relationship = db.getRelationshipById(id);
+            relationships.incrementAndGet();
+            return handler.indexRequests(relationship, handler.nextVersion()).values();
+        }
+    }
+
+    static class Stats {
+        final long nodes, relationships, documents, failed, millis;
+
+        Stats(long nodes, long relationships, long documents, long failed, long millis) {
+            this.nodes = nodes;
+            this.relationships = relationships;
+            this.documents = documents;
+            this.failed = failed;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return nodes + " nodes, " + relationships + " relationships, " + documents + " documents indexed, " + failed + " failed in " + millis + " ms";
+        }
+    }
+}
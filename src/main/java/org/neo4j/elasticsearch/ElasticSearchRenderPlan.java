@@ -0,0 +1,74 @@
+package org.neo4j.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The distinct property projections of all index specs, numbered once at startup. Specs with the same properties,
+ * of one label or of several, share a projection, so the document for them is rendered once per entity and reused
+ * for every index. Projection 0 is the whole entity, for the index for all nodes and specs without properties.
+ *
+ * The keys of each projection are compiled into an array, which the document writer reads in one pass.
+ */
+class ElasticSearchRenderPlan {
+    static final int ALL = 0;
+
+    private final List<String[]> projections = new ArrayList<>();
+    private final Map<Set<String>, Integer> ids = new HashMap<>();
+    private final Map<ElasticSearchIndexSpec, Integer> specs = new IdentityHashMap<>();
+
+    public ElasticSearchRenderPlan(ElasticSearchIndexSettings indexSettings) {
+        add(Collections.emptySet());
+        add(indexSettings.getIndexSpec());
+        add(indexSettings.getRelationshipIndexSpec());
+    }
+
+    private void add(Map<String, List<ElasticSearchIndexSpec>> indexSpec) {
+        for (List<ElasticSearchIndexSpec> specs : indexSpec.values()) {
+            for (ElasticSearchIndexSpec spec : specs) {
+                Set<String> properties = spec.getProperties();
+                this.specs.put(spec, properties == null ? ALL : add(properties));
+            }
+        }
+    }
+
+    private int add(Set<String> properties) {
+        return ids.computeIfAbsent(properties, key -> {
+            projections.add(key.toArray(new String[key.size()]));
+            return projections.size() - 1;
+        });
+    }
+
+    /**
+     * @param spec null for the index for all nodes
+     */
+    public int projection(ElasticSearchIndexSpec spec) {
+        return spec == null ? ALL : specs.get(spec);
+    }
+
+    /**
+     * @return the projection of exactly these properties, -1 if no spec has it
+     */
+    public int projection(Collection<String> properties) {
+        Integer id = ids.get(properties instanceof Set ? properties : new HashSet<>(properties));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the property keys of the projection, empty for the whole entity
+     */
+    public String[] keys(int projection) {
+        return projections.get(projection);
+    }
+
+    public int size() {
+        return projections.size();
+    }
+}
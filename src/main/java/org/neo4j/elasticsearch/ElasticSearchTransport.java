@@ -0,0 +1,35 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.BulkResult;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sends the bulk requests of the event handler to ElasticSearch.
+ */
+interface ElasticSearchTransport {
+
+    enum Type {
+        /** through the Jest client, which is also used for everything else */
+        jest,
+        /** bulk bodies written directly to a pooled async http client */
+        http
+    }
+
+    BulkResult bulk(List<BulkableAction> actions) throws IOException;
+
+    /**
+     * Sends bulk lines that were rendered before, e.g. the records of the outbox.
+     */
+    BulkResult bulk(String body) throws IOException;
+
+    /**
+     * Sends the bulk without waiting for the answer, the handler is called in an io thread.
+     */
+    void bulkAsync(List<BulkableAction> actions, JestResultHandler<BulkResult> handler);
+
+    void close();
+}
@@ -0,0 +1,67 @@
+package org.neo4j.elasticsearch;
+
+/**
+ * Identifies a single document in ElasticSearch, used to collapse several
+ * actions for the same document into the last one.
+ *
+ * Documents with the same id but another routing are different documents, possibly on another shard.
+ */
+class IndexId {
+    final String indexName, id, routing;
+
+    public IndexId(String indexName, String id) {
+        this(indexName, id, null);
+    }
+
+    /**
+     * @param routing null for documents routed by id
+     */
+    public IndexId(String indexName, String id, String routing) {
+        this.indexName = indexName;
+        this.id = id;
+        this.routing = routing;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((id == null) ? 0 : id.hashCode());
+        result = prime * result
+                + ((indexName == null) ? 0 : indexName.hashCode());
+        result = prime * result + ((routing == null) ? 0 : routing.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (!(obj instanceof IndexId))
+            return false;
+        IndexId other = (IndexId) obj;
+        if (id == null) {
+            if (other.id != null)
+                return false;
+        } else if (!id.equals(other.id))
+            return false;
+        if (indexName == null) {
+            if (other.indexName != null)
+                return false;
+        } else if (!indexName.equals(other.indexName))
+            return false;
+        if (routing == null) {
+            if (other.routing != null)
+                return false;
+        } else if (!routing.equals(other.routing))
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexId [indexName=" + indexName + ", id=" + id + ", routing=" + routing + "]";
+    }
+}
@@ -0,0 +1,118 @@
+package org.neo4j.elasticsearch;
+
+import org.neo4j.collection.primitive.PrimitiveIntIterator;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.StatementConstants;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The labels, relationship types and property keys that are part of any index spec, used to skip
+ * changes that can't affect a document before any actions are built.
+ *
+ * With a statement bridge, the labels of a node are checked by their token ids against a bit set
+ * instead of loading the label names. Label tokens that don't exist yet are looked up again until
+ * they do, after that the bit set never changes.
+ */
+class IndexedTokens {
+    private final Set<String> labels;
+    // null if any spec indexes all properties
+    private final Set<String> properties;
+    private final Set<String> types;
+    private final Set<String> relationshipProperties;
+    private ThreadToStatementContextBridge bridge;
+    private volatile BitSet labelIds;
+    private volatile boolean resolved;
+
+    public IndexedTokens(ElasticSearchIndexSettings indexSettings) {
+        this.labels = new HashSet<>(indexSettings.getIndexSpec().keySet());
+        this.properties = properties(indexSettings.getIndexSpec());
+        this.types = new HashSet<>(indexSettings.getRelationshipIndexSpec().keySet());
+        this.relationshipProperties = properties(indexSettings.getRelationshipIndexSpec());
+    }
+
+    private static Set<String> properties(Map<String, List<ElasticSearchIndexSpec>> indexSpec) {
+        Set<String> properties = new HashSet<>();
+        for (List<ElasticSearchIndexSpec> specs : indexSpec.values()) {
+            for (ElasticSearchIndexSpec spec : specs) {
+                if (spec.getProperties() == null || spec.getProperties().isEmpty()) return null;
+                properties.addAll(spec.getProperties());
+                // changing them moves the document to another index or shard
+                properties.addAll(spec.getLocationProperties());
+            }
+        }
+        return properties;
+    }
+
+    public void setStatementBridge(ThreadToStatementContextBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    public boolean isIndexedLabel(String label) {
+        return labels.contains(label);
+    }
+
+    public boolean isIndexedProperty(String key) {
+        return properties == null || properties.contains(key);
+    }
+
+    public boolean isIndexedType(String type) {
+        return types.contains(type);
+    }
+
+    public boolean isIndexedRelationshipProperty(String key) {
+        return relationshipProperties == null || relationshipProperties.contains(key);
+    }
+
+    public boolean hasRelationshipSpecs() {
+        return !types.isEmpty();
+    }
+
+    /**
+     * @return whether the node carries any indexed label, false if it doesn't exist anymore
+     */
+    public boolean hasIndexedLabel(Node node) {
+        if (labels.isEmpty()) return false;
+        if (bridge == null) {
+            for (Label label : node.getLabels()) {
+                if (labels.contains(label.name())) return true;
+            }
+            return false;
+        }
+        try (Statement statement = bridge.get()) {
+            ReadOperations ops = statement.readOperations();
+            BitSet ids = labelIds(ops);
+            if (ids.isEmpty()) return false;
+            PrimitiveIntIterator nodeLabels = ops.nodeGetLabels(node.getId());
+            while (nodeLabels.hasNext()) {
+                if (ids.get(nodeLabels.next())) return true;
+            }
+            return false;
+        } catch (EntityNotFoundException e) {
+            return false;
+        }
+    }
+
+    private BitSet labelIds(ReadOperations ops) {
+        if (resolved) return labelIds;
+        BitSet ids = new BitSet();
+        boolean all = true;
+        for (String label : labels) {
+            int id = ops.labelGetForName(label);
+            if (id == StatementConstants.NO_SUCH_LABEL) all = false;
+            else ids.set(id);
+        }
+        labelIds = ids;
+        resolved = all;
+        return ids;
+    }
+}
@@ -1,6 +1,8 @@
 package org.neo4j.elasticsearch;
 
 import io.searchbox.client.config.HttpClientConfig;
+import org.neo4j.elasticsearch.ElasticSearchKernelExtensionFactory.ElasticSearchSettings;
+import org.neo4j.kernel.configuration.Config;
 
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
@@ -13,6 +15,8 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.*;
@@ -29,6 +33,37 @@ public class JestDefaultHttpConfigFactory {
       .build();
   }
 
+  /**
+   * The client configuration from the connection settings. Requests are sent round robin to the comma separated
+   * servers of the host name, with discovery to all nodes of the cluster that have http enabled.
+   * Unlike {@link #getConfigFor(String)} the certificates of https servers are checked. Compression is left to
+   * the {@link CompressingJestClientFactory}.
+   */
+  public static HttpClientConfig getConfigFor(final String hostNames, final Config config) throws URISyntaxException {
+    List<String> servers = servers(hostNames);
+    long keepAlive = config.get(ElasticSearchSettings.keepAlive);
+    return new HttpClientConfig.Builder(servers)
+      .multiThreaded(true)
+      .connTimeout((int) (long) config.get(ElasticSearchSettings.connectTimeout))
+      .readTimeout((int) (long) config.get(ElasticSearchSettings.readTimeout))
+      .maxTotalConnection(config.get(ElasticSearchSettings.maxConnections))
+      .defaultMaxTotalConnectionPerRoute(config.get(ElasticSearchSettings.maxConnectionsPerRoute))
+      .maxConnectionIdleTime(keepAlive, TimeUnit.MILLISECONDS)
+      .discoveryEnabled(config.get(ElasticSearchSettings.discovery))
+      .discoveryFrequency(config.get(ElasticSearchSettings.discoveryInterval), TimeUnit.MILLISECONDS)
+      .defaultSchemeForDiscoveredNodes(new URI(servers.get(0)).getScheme())
+      .build();
+  }
+
+  static List<String> servers(final String hostNames) {
+    List<String> servers = new ArrayList<>();
+    for (String hostName : hostNames.split(",")) {
+      if (!hostName.trim().isEmpty()) servers.add(hostName.trim());
+    }
+    if (servers.isEmpty()) throw new IllegalArgumentException("No ElasticSearch host in " + hostNames);
+    return servers;
+  }
+
   private static SSLConnectionSocketFactory getSyncHttpsHandler() throws GeneralSecurityException {
     return new SSLConnectionSocketFactory(getSSLContext(), NoopHostnameVerifier.INSTANCE);
   }
@@ -0,0 +1,22 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.core.Bulk;
+
+/**
+ * A bulk request whose body has already been rendered, e.g. when replaying the outbox.
+ * Results are parsed like those of a regular {@link Bulk}.
+ */
+class RawBulk extends Bulk {
+    private final String body;
+
+    public RawBulk(String body) {
+        super(new Bulk.Builder());
+        this.body = body;
+    }
+
+    @Override
+    public String getData(Gson gson) {
+        return body;
+    }
+}
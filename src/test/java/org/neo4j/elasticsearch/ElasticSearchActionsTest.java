@@ -0,0 +1,57 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Delete;
+import io.searchbox.core.Index;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchActionsTest {
+
+    private static BulkableAction index(String index, long id) {
+        return new Index.Builder("{}").index(index).type("node").id(String.valueOf(id)).build();
+    }
+
+    @Test
+    public void testKeepsLastActionPerDocument() throws Exception {
+        ElasticSearchActions actions = new ElasticSearchActions(2);
+        assertTrue(actions.isEmpty());
+        actions.put(0, 1, index("a", 1));
+        actions.put(1, 1, index("b", 1));
+        Delete delete = new Delete.Builder("1").index("a").type("node").build();
+        actions.put(0, 1, delete);
+        assertEquals(2, actions.size());
+        assertSame(delete, actions.get(0, 1));
+        assertNull(actions.get(0, 2));
+        assertFalse(actions.contains(1, 2));
+    }
+
+    @Test
+    public void testPutIfAbsentKeepsExistingAction() throws Exception {
+        ElasticSearchActions actions = new ElasticSearchActions(1);
+        BulkableAction first = index("a", 1);
+        actions.putIfAbsent(0, 1, first);
+        actions.putIfAbsent(0, 1, index("a", 1));
+        assertEquals(1, actions.size());
+        assertSame(first, actions.get(0, 1));
+    }
+
+    @Test
+    public void testListsAllActions() throws Exception {
+        ElasticSearchActions actions = new ElasticSearchActions(3);
+        for (long id = 0; id < 1000; id++) {
+            actions.put((int) (id % 3), id, index("i" + id % 3, id));
+        }
+        List<BulkableAction> values = actions.values();
+        assertEquals(1000, values.size());
+        assertEquals(1000, new HashSet<>(values).size());
+    }
+}
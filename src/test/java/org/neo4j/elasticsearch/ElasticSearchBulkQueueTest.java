@@ -0,0 +1,136 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Delete;
+import io.searchbox.core.Index;
+import io.searchbox.core.Update;
+import io.searchbox.params.Parameters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchBulkQueueTest {
+
+    public static final String INDEX = "test-index";
+    private List<Collection<BulkableAction>> bulks;
+    private ElasticSearchBulkQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        bulks = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null) queue.shutdown();
+    }
+
+    private List<BulkableAction> index(String id, String source) {
+        return Collections.singletonList(new Index.Builder(source).index(INDEX).type("node").id(id).build());
+    }
+
+    @Test
+    public void testCollapsesActionsForSameDocument() throws Exception {
+        queue = new ElasticSearchBulkQueue((bulk, since) -> bulks.add(bulk), 100, 0, 60000);
+        queue.add(index("1", "{\"foo\":\"bar\"}"));
+        queue.add(index("2", "{\"foo\":\"bar\"}"));
+        Delete deleteAction = new Delete.Builder("1").index(INDEX).build();
+        queue.add(Collections.singletonList(deleteAction));
+        assertEquals(2, queue.size());
+
+        queue.flush();
+        assertEquals(1, bulks.size());
+        List<BulkableAction> bulk = new ArrayList<>(bulks.get(0));
+        assertEquals(2, bulk.size());
+        // the delete replaced the index, and is sent after the actions that were pending before it
+        assertSame(deleteAction, bulk.get(1));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testKeepsDeleteOfDocumentMovedToAnotherRouting() throws Exception {
+        queue = new ElasticSearchBulkQueue((bulk, since) -> bulks.add(bulk), 100, 0, 60000);
+        BulkableAction index = new Index.Builder("{}").index(INDEX).type("node").id("1").setParameter(Parameters.ROUTING, "acme").build();
+        queue.add(Collections.singletonList(index));
+        BulkableAction delete = new Delete.Builder("1").index(INDEX).type("node").setParameter(Parameters.ROUTING, "acme").build();
+        BulkableAction moved = new Index.Builder("{}").index(INDEX).type("node").id("1").setParameter(Parameters.ROUTING, "globex").build();
+        queue.add(Arrays.asList(delete, moved));
+        assertEquals(2, queue.size());
+
+        // moving back deletes the document with the new routing before indexing it with the old one again
+        BulkableAction deleteMoved = new Delete.Builder("1").index(INDEX).type("node").setParameter(Parameters.ROUTING, "globex").build();
+        BulkableAction back = new Index.Builder("{}").index(INDEX).type("node").id("1").setParameter(Parameters.ROUTING, "acme").build();
+        queue.add(Arrays.asList(deleteMoved, back));
+        queue.flush();
+        assertEquals(Arrays.asList(deleteMoved, back), new ArrayList<>(bulks.get(0)));
+    }
+
+    private List<BulkableAction> update(String id, String doc) {
+        return Collections.singletonList(new Update.Builder(doc).index(INDEX).type("node").id(id).build());
+    }
+
+    @Test
+    public void testMergesPartialUpdatesAfterFullAction() throws Exception {
+        queue = new ElasticSearchBulkQueue((bulk, since) -> bulks.add(bulk), 100, 0, 60000);
+        queue.add(index("1", "{\"properties\":{\"foo\":\"bar\",\"counter\":0}}"));
+        queue.add(update("1", "{\"doc\":{\"properties\":{\"counter\":1,\"foo\":null}}}"));
+        queue.add(update("1", "{\"doc\":{\"properties\":{\"counter\":2}}}"));
+        assertEquals(2, queue.size());
+
+        queue.flush();
+        List<BulkableAction> bulk = new ArrayList<>(bulks.get(0));
+        assertTrue(bulk.get(0) instanceof Index);
+        assertEquals("{\"doc\":{\"properties\":{\"counter\":2,\"foo\":null}}}", bulk.get(1).getData(null));
+
+        // a full action replaces pending partial updates
+        queue.add(update("1", "{\"doc\":{\"properties\":{\"counter\":3}}}"));
+        queue.add(index("1", "{\"properties\":{\"counter\":4}}"));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testFlushesOnMaxActions() throws Exception {
+        queue = new ElasticSearchBulkQueue((bulk, since) -> bulks.add(bulk), 3, 0, 60000);
+        for (int i = 0; i < 7; i++) {
+            queue.add(index(String.valueOf(i), "{}"));
+        }
+        assertEquals(2, bulks.size());
+        assertEquals(3, bulks.get(0).size());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testFlushesOnMaxBytes() throws Exception {
+        queue = new ElasticSearchBulkQueue((bulk, since) -> bulks.add(bulk), 100, 1024, 60000);
+        StringBuilder large = new StringBuilder("{\"foo\":\"");
+        for (int i = 0; i < 600; i++) large.append('x');
+        large.append("\"}");
+        queue.add(index("1", large.toString()));
+        assertEquals(0, bulks.size());
+        queue.add(index("2", large.toString()));
+        assertEquals(1, bulks.size());
+        assertEquals(2, bulks.get(0).size());
+    }
+
+    @Test
+    public void testFlushesAfterInterval() throws Exception {
+        queue = new ElasticSearchBulkQueue((bulk, since) -> bulks.add(bulk), 100, 0, 50);
+        queue.add(index("1", "{}"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bulks.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, bulks.size());
+        assertTrue(queue.size() == 0);
+    }
+}
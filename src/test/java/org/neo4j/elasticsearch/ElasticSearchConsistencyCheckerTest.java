@@ -0,0 +1,210 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonObject;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.config.HttpClientConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+
+public class ElasticSearchConsistencyCheckerTest {
+
+    public static final String INDEX = "test-index";
+    public static final String LABEL = "Label";
+    private GraphDatabaseService db;
+    private FakeElasticSearchServer server;
+    private JestClient client;
+    private ElasticSearchEventHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeElasticSearchServer();
+        JestClientFactory factory = new JestClientFactory();
+        factory.setHttpClientConfig(new HttpClientConfig.Builder(server.url()).multiThreaded(true).build());
+        client = factory.getObject();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(INDEX + ":" + LABEL + "(foo)"), true, true);
+        indexSettings.setIncludeHashField(true);
+        handler = new ElasticSearchEventHandler(client, indexSettings, null);
+
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 50; i++) {
+                Node node = i % 5 == 0 ? db.createNode() : db.createNode(Label.label(LABEL));
+                node.setProperty("foo", "bar" + i);
+            }
+            tx.success();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+        client.shutdownClient();
+        server.close();
+    }
+
+    private ElasticSearchConsistencyChecker.Stats check(boolean repair) throws InterruptedException {
+        return new ElasticSearchConsistencyChecker((GraphDatabaseAPI) db, handler, client, 16, 2, 0, repair).check();
+    }
+
+    @Test
+    public void testRepairsMissingDocuments() throws Exception {
+        ElasticSearchConsistencyChecker.Stats stats = check(true);
+        assertEquals(50, stats.entities);
+        assertEquals(40, stats.missing);
+        assertEquals(40, stats.repaired);
+        assertEquals(40, server.count(INDEX));
+        assertNotNull(server.get(INDEX, LABEL, "1").get("hash"));
+
+        stats = check(true);
+        assertEquals(40, stats.documents);
+        assertEquals(0, stats.missing + stats.stale + stats.orphaned + stats.repaired + stats.failed);
+    }
+
+    @Test
+    public void testFindsAndRepairsDifferences() throws Exception {
+        check(true);
+        server.remove(INDEX, LABEL, "1");
+        JsonObject changed = server.get(INDEX, LABEL, "2");
+        changed.addProperty("hash", "0000000000000000");
+        server.put(INDEX, LABEL, "2", changed);
+        // a node that was never indexed, one that doesn't exist and one with another type
+        server.put(INDEX, LABEL, "5", new JsonObject());
+        server.put(INDEX, LABEL, "1000", new JsonObject());
+        server.put(INDEX, "Other", "3", new JsonObject());
+
+        ElasticSearchConsistencyChecker.Stats stats = check(false);
+        assertEquals(1, stats.missing);
+        assertEquals(1, stats.stale);
+        assertEquals(2, stats.orphaned);
+        assertEquals(0, stats.repaired);
+        assertNull(server.get(INDEX, LABEL, "1"));
+
+        stats = check(true);
+        assertEquals(4, stats.repaired);
+        assertNotNull(server.get(INDEX, LABEL, "1"));
+        assertEquals("bar2", server.get(INDEX, LABEL, "2").getAsJsonObject("properties").get("foo").getAsString());
+        assertNull(server.get(INDEX, LABEL, "5"));
+        assertNull(server.get(INDEX, "Other", "3"));
+        // above the highest node id, so not checked
+        assertNotNull(server.get(INDEX, LABEL, "1000"));
+
+        stats = check(false);
+        assertEquals(0, stats.missing + stats.stale + stats.orphaned);
+    }
+
+    @Test
+    public void testRepairsDocumentsWithAnotherRouting() throws Exception {
+        ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(INDEX + ":" + LABEL + "(foo)@foo"), true, true);
+        indexSettings.setIncludeHashField(true);
+        handler = new ElasticSearchEventHandler(client, indexSettings, null);
+        check(true);
+        assertEquals("bar1", server.routing(INDEX, LABEL, "1"));
+        server.put(INDEX, LABEL, "1", server.get(INDEX, LABEL, "1"), "bar2");
+
+        ElasticSearchConsistencyChecker.Stats stats = check(false);
+        assertEquals(1, stats.stale);
+        assertEquals(0, stats.missing + stats.orphaned);
+
+        stats = check(true);
+        assertEquals(2, stats.repaired);
+        assertEquals("bar1", server.routing(INDEX, LABEL, "1"));
+        stats = check(false);
+        assertEquals(0, stats.missing + stats.stale + stats.orphaned);
+    }
+
+    @Test
+    public void testAcceptsDocumentsRenderedFromAnotherProjection() throws Exception {
+        // the spec lists exactly the properties of the nodes, so the handler reuses the rendering of all properties,
+        // which reads them in another order than the spec lists them
+        ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(INDEX + ":" + LABEL + "(BB,Aa)"), true, true);
+        indexSettings.setIncludeHashField(true);
+        handler = new ElasticSearchEventHandler(client, indexSettings, "all");
+        handler.setUseAsyncJest(false);
+        db.registerTransactionEventHandler(handler);
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 10; i++) {
+                Node node = db.createNode(Label.label(LABEL));
+                node.setProperty("Aa", "a" + i);
+                node.setProperty("BB", "b" + i);
+            }
+            tx.success();
+        }
+        db.unregisterTransactionEventHandler(handler);
+
+        // without the index for all nodes the checker renders the projection of the spec by itself
+        handler = new ElasticSearchEventHandler(client, indexSettings, null);
+        ElasticSearchConsistencyChecker.Stats stats = check(false);
+        assertEquals(50, stats.missing + stats.documents);
+        assertEquals(0, stats.stale);
+    }
+
+    @Test
+    public void testAcceptsPartiallyUpdatedDocuments() throws Exception {
+        check(true);
+        handler.setUseAsyncJest(false);
+        handler.setPartialUpdates(true);
+        db.registerTransactionEventHandler(handler);
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(1).setProperty("foo", "changed");
+            tx.success();
+        }
+        db.unregisterTransactionEventHandler(handler);
+        assertEquals("changed", server.get(INDEX, LABEL, "1").getAsJsonObject("properties").get("foo").getAsString());
+
+        ElasticSearchConsistencyChecker.Stats stats = check(false);
+        assertEquals(0, stats.missing + stats.stale + stats.orphaned);
+    }
+
+    @Test
+    public void testCheckProcedure() throws Exception {
+        db.shutdown();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder()
+                .setConfig(stringMap(
+                        "elasticsearch.host_name", server.url(),
+                        "elasticsearch.index_spec", INDEX + ":" + LABEL + "(foo)",
+                        "elasticsearch.include_hash_field", "true"))
+                .newGraphDatabase();
+        ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class)
+                .register(ElasticSearchProcedures.class);
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(Label.label(LABEL)).setProperty("foo", "bar");
+            tx.success();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.count(INDEX) < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Map<String, Object> row = db.execute("CALL elasticsearch.check()").next();
+        assertEquals(1L, row.get("entities"));
+        assertEquals(1L, row.get("documents"));
+        assertEquals(0L, row.get("stale"));
+
+        server.clear();
+        Result result = db.execute("CALL elasticsearch.repair()");
+        row = result.next();
+        assertEquals(1L, row.get("missing"));
+        assertEquals(1L, row.get("repaired"));
+        assertEquals(1, server.count(INDEX));
+    }
+}
@@ -0,0 +1,146 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchDocumentWriterTest {
+
+    private GraphDatabaseService db;
+    private ElasticSearchIndexSettings indexSettings;
+    private ElasticSearchDocumentWriter writer;
+    private final Gson gson = new Gson();
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        indexSettings = new ElasticSearchIndexSettings(Collections.emptyMap(), true, true);
+        writer = new ElasticSearchDocumentWriter(indexSettings);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+    }
+
+    private Map render(Node node, String... properties) {
+        String source = writer.render(node, properties);
+        return gson.fromJson(source, Map.class);
+    }
+
+    @Test
+    public void testRendersAllProperties() throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"), Label.label("Other"));
+            node.setProperty("name", "quote \" backslash \\ newline \n tab \t control \u0001 unicode é");
+            node.setProperty("count", 42L);
+            node.setProperty("ratio", 0.5d);
+            node.setProperty("flag", true);
+            node.setProperty("names", new String[]{"a", "b"});
+            node.setProperty("numbers", new int[]{1, 2});
+
+            Map source = render(node);
+            assertEquals(String.valueOf(node.getId()), source.get("id"));
+            assertEquals(asList("Label", "Other"), source.get("labels"));
+            Map properties = (Map) source.get("properties");
+            assertEquals(node.getProperty("name"), properties.get("name"));
+            assertEquals(42.0, properties.get("count"));
+            assertEquals(0.5, properties.get("ratio"));
+            assertEquals(true, properties.get("flag"));
+            assertEquals(asList("a", "b"), properties.get("names"));
+            assertEquals(asList(1.0, 2.0), properties.get("numbers"));
+            assertEquals(new HashSet<>(asList("name", "count", "ratio", "flag", "names", "numbers")),
+                    new HashSet<>(writer.renderedPropertyKeys()));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void testRendersSpecifiedPropertiesOnly() throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"));
+            node.setProperty("foo", "bar");
+            node.setProperty("baz", "quux");
+
+            indexSettings.setIncludeIDField(false);
+            indexSettings.setIncludeLabelsField(false);
+            Map source = render(node, "foo");
+            assertNull(source.get("id"));
+            assertNull(source.get("labels"));
+            Map properties = (Map) source.get("properties");
+            assertEquals(1, properties.size());
+            assertEquals("bar", properties.get("foo"));
+            assertFalse(properties.containsKey("baz"));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void testLeavesOutMissingProperties() throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"));
+            node.setProperty("foo", "bar");
+
+            Map properties = (Map) render(node, "missing", "foo", "other").get("properties");
+            assertEquals(1, properties.size());
+            assertEquals("bar", properties.get("foo"));
+
+            properties = (Map) render(db.createNode(), "foo").get("properties");
+            assertTrue(properties.isEmpty());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void testHashDoesNotDependOnPropertyOrder() throws Exception {
+        indexSettings.setIncludeHashField(true);
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label("Label"));
+            node.setProperty("foo", "bar");
+            node.setProperty("baz", 42);
+
+            String hash = ElasticSearchDocumentWriter.hash(writer.render(node, null));
+            assertEquals(hash, ElasticSearchDocumentWriter.hash(writer.render(node, new String[]{"foo", "baz"})));
+            assertEquals(hash, ElasticSearchDocumentWriter.hash(writer.render(node, new String[]{"baz", "foo"})));
+            node.setProperty("baz", 43);
+            assertFalse(hash.equals(ElasticSearchDocumentWriter.hash(writer.render(node, null))));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void testRendersRelationship() throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            Node start = db.createNode();
+            Node end = db.createNode();
+            Relationship relationship = start.createRelationshipTo(end, RelationshipType.withName("KNOWS"));
+            relationship.setProperty("since", 2010);
+
+            Map source = gson.fromJson(writer.render(relationship, null), Map.class);
+            assertEquals(String.valueOf(relationship.getId()), source.get("id"));
+            assertEquals("KNOWS", source.get("type"));
+            assertEquals(String.valueOf(start.getId()), source.get("start"));
+            assertEquals(String.valueOf(end.getId()), source.get("end"));
+            assertEquals(2010.0, ((Map) source.get("properties")).get("since"));
+            tx.success();
+        }
+    }
+}
@@ -0,0 +1,1079 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import io.searchbox.action.BulkableAction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the bulk actions the handler produces, without an ElasticSearch server.
+ */
+public class ElasticSearchEventHandlerActionsTest {
+
+    public static final String INDEX = "test-index";
+    public static final String LABEL = "Label";
+    public static final String INDEX_ALL = "index-all";
+    public static final String EDGES = "edges";
+    public static final String TYPE = "KNOWS";
+    private GraphDatabaseService db;
+    private RecordingJestClient client;
+    private ElasticSearchEventHandler handler;
+    private Node node;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        client = new RecordingJestClient();
+        register(INDEX_ALL);
+        node = createNode();
+        client.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.unregisterTransactionEventHandler(handler);
+        db.shutdown();
+    }
+
+    private void register(String indexAll) throws Exception {
+        register(INDEX + ":" + LABEL + "(foo,counter)," + EDGES + ":[" + TYPE + "](since)", indexAll);
+    }
+
+    private void register(String spec, String indexAll) throws Exception {
+        if (handler != null) db.unregisterTransactionEventHandler(handler);
+        ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(spec),
+                ElasticSearchIndexSpecParser.parseRelationshipIndexSpec(spec), true, true);
+        handler = new ElasticSearchEventHandler(client, indexSettings, indexAll);
+        handler.setUseAsyncJest(false);
+        handler.setStatementBridge(((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class));
+        db.registerTransactionEventHandler(handler);
+    }
+
+    private Node createNode() {
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label(LABEL));
+            node.setProperty("foo", "bar");
+            node.setProperty("counter", 0);
+            node.setProperty("other", "value");
+            tx.success();
+            return node;
+        }
+    }
+
+    private void setProperty(String key, Object value) {
+        try (Transaction tx = db.beginTx()) {
+            node.setProperty(key, value);
+            tx.success();
+        }
+    }
+
+    private Map<String, JsonObject[]> itemsByIndex() {
+        Map<String, JsonObject[]> items = new HashMap<>();
+        for (JsonObject[] item : client.bulkItems()) {
+            JsonObject action = item[0].entrySet().iterator().next().getValue().getAsJsonObject();
+            items.put(action.get("_index").getAsString(), item);
+        }
+        return items;
+    }
+
+    @Test
+    public void testIndexesCreatedNode() throws Exception {
+        createNode();
+        Map<String, JsonObject[]> items = itemsByIndex();
+        assertEquals(2, items.size());
+        JsonObject[] item = items.get(INDEX);
+        assertTrue(item[0].has("index"));
+        JsonObject properties = item[1].getAsJsonObject("properties");
+        assertEquals("bar", properties.get("foo").getAsString());
+        assertEquals(2, properties.entrySet().size());
+        assertEquals(3, items.get(INDEX_ALL)[1].getAsJsonObject("properties").entrySet().size());
+    }
+
+    @Test
+    public void testReindexesChangedProperty() throws Exception {
+        setProperty("counter", 1);
+        Map<String, JsonObject[]> items = itemsByIndex();
+        assertEquals(2, items.size());
+        assertTrue(items.get(INDEX)[0].has("index"));
+        assertEquals(1, items.get(INDEX)[1].getAsJsonObject("properties").get("counter").getAsInt());
+        assertEquals("bar", items.get(INDEX)[1].getAsJsonObject("properties").get("foo").getAsString());
+    }
+
+    @Test
+    public void testSendsOnlyChangedPropertiesAsPartialUpdate() throws Exception {
+        handler.setPartialUpdates(true);
+        setProperty("counter", 1);
+        Map<String, JsonObject[]> items = itemsByIndex();
+        assertEquals(2, items.size());
+        for (JsonObject[] item : items.values()) {
+            assertTrue(item[0].has("update"));
+            JsonObject properties = item[1].getAsJsonObject("doc").getAsJsonObject("properties");
+            assertEquals(1, properties.entrySet().size());
+            assertEquals(1, properties.get("counter").getAsInt());
+        }
+    }
+
+    @Test
+    public void testSendsRemovedPropertyAsNull() throws Exception {
+        handler.setPartialUpdates(true);
+        try (Transaction tx = db.beginTx()) {
+            node.removeProperty("foo");
+            tx.success();
+        }
+        JsonObject[] item = itemsByIndex().get(INDEX);
+        assertTrue(item[1].getAsJsonObject("doc").getAsJsonObject("properties").get("foo").isJsonNull());
+    }
+
+    @Test
+    public void testIgnoresChangesToPropertiesThatAreNotIndexed() throws Exception {
+        register(null);
+        handler.setPartialUpdates(true);
+        setProperty("other", "changed");
+        assertEquals(0, client.bodies().size());
+
+        handler.setPartialUpdates(false);
+        setProperty("other", "changed again");
+        assertEquals(0, client.bodies().size());
+    }
+
+    @Test
+    public void testCreatedNodeIsIndexedInFullInPartialMode() throws Exception {
+        handler.setPartialUpdates(true);
+        createNode();
+        List<JsonObject[]> items = client.bulkItems();
+        assertEquals(2, items.size());
+        for (JsonObject[] item : items) {
+            assertTrue(item[0].has("index"));
+        }
+    }
+
+    @Test
+    public void testSkipsNodesWithoutIndexedLabels() throws Exception {
+        register(null);
+        Node other;
+        try (Transaction tx = db.beginTx()) {
+            other = db.createNode(Label.label("Other"));
+            other.setProperty("foo", "bar");
+            other.setProperty("counter", 0);
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            other.setProperty("foo", "baz");
+            other.addLabel(Label.label("Another"));
+            tx.success();
+        }
+        assertEquals(0, client.bodies().size());
+
+        // the label token only exists once it is first used
+        try (Transaction tx = db.beginTx()) {
+            other.addLabel(Label.label(LABEL));
+            tx.success();
+        }
+        assertEquals(1, client.bulkItems().size());
+    }
+
+    @Test
+    public void testIndexesCreatedNodeOnce() throws Exception {
+        register(null);
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label(LABEL), Label.label("Other"));
+            node.setProperty("foo", "bar");
+            node.setProperty("counter", 0);
+            node.addLabel(Label.label("Another"));
+            tx.success();
+        }
+        assertEquals(1, client.bulkItems().size());
+    }
+
+    @Test
+    public void testRendersNodeOncePerIndex() throws Exception {
+        register(INDEX + ":" + LABEL + "(foo,counter)," + INDEX + ":Other(foo,counter)", INDEX_ALL);
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Label.label(LABEL));
+            node.setProperty("foo", "bar");
+            node.setProperty("counter", 1);
+            node.addLabel(Label.label("Other"));
+            node.setProperty("counter", 2);
+            tx.success();
+        }
+        List<JsonObject[]> items = client.bulkItems();
+        assertEquals(2, items.size());
+        Map<String, JsonObject[]> byIndex = itemsByIndex();
+        assertEquals(2, byIndex.get(INDEX)[1].getAsJsonObject("properties").get("counter").getAsInt());
+        assertEquals(2, byIndex.get(INDEX_ALL)[1].getAsJsonObject("properties").get("counter").getAsInt());
+    }
+
+    @Test
+    public void testIndexesRelationships() throws Exception {
+        register(null);
+        Relationship relationship;
+        try (Transaction tx = db.beginTx()) {
+            Node other = db.createNode();
+            relationship = node.createRelationshipTo(other, RelationshipType.withName(TYPE));
+            relationship.setProperty("since", 2010);
+            node.createRelationshipTo(other, RelationshipType.withName("OTHER"));
+            tx.success();
+        }
+        List<JsonObject[]> items = client.bulkItems();
+        assertEquals(1, items.size());
+        JsonObject action = items.get(0)[0].getAsJsonObject("index");
+        assertEquals(EDGES, action.get("_index").getAsString());
+        assertEquals(TYPE, action.get("_type").getAsString());
+        assertEquals(String.valueOf(relationship.getId()), action.get("_id").getAsString());
+        assertEquals(String.valueOf(node.getId()), items.get(0)[1].get("start").getAsString());
+        assertEquals(2010, items.get(0)[1].getAsJsonObject("properties").get("since").getAsInt());
+
+        client.clear();
+        handler.setPartialUpdates(true);
+        try (Transaction tx = db.beginTx()) {
+            relationship.setProperty("since", 2011);
+            relationship.setProperty("unindexed", true);
+            tx.success();
+        }
+        items = client.bulkItems();
+        assertEquals(1, items.size());
+        assertEquals(2011, items.get(0)[1].getAsJsonObject("doc").getAsJsonObject("properties").get("since").getAsInt());
+    }
+
+    @Test
+    public void testKeepsNodeAndRelationshipWithSameIdInSameIndex() throws Exception {
+        register(INDEX + ":" + LABEL + "(foo)," + INDEX + ":[" + TYPE + "](since)", INDEX);
+        Relationship relationship;
+        try (Transaction tx = db.beginTx()) {
+            node.setProperty("foo", "baz");
+            relationship = node.createRelationshipTo(node, RelationshipType.withName(TYPE));
+            relationship.setProperty("since", 2010);
+            tx.success();
+        }
+        assertEquals(node.getId(), relationship.getId());
+        Set<String> types = new HashSet<>();
+        for (JsonObject action : client.bulkActions()) {
+            JsonObject meta = action.getAsJsonObject("index");
+            assertEquals(INDEX, meta.get("_index").getAsString());
+            types.add(meta.get("_type").getAsString());
+        }
+        assertEquals(new HashSet<>(asList(LABEL, TYPE, "node")), types);
+    }
+
+    @Test
+    public void testDeletesRelationshipsOfDeletedNode() throws Exception {
+        register(null);
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 10; i++) {
+                node.createRelationshipTo(db.createNode(), RelationshipType.withName(TYPE)).setProperty("since", i);
+            }
+            tx.success();
+        }
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            for (Relationship relationship : node.getRelationships()) {
+                relationship.delete();
+            }
+            node.delete();
+            tx.success();
+        }
+        int deletes = 0;
+        for (JsonObject[] item : client.bulkItems()) {
+            JsonObject delete = item[0].getAsJsonObject("delete");
+            if (delete != null && delete.get("_index").getAsString().equals(EDGES)) deletes++;
+        }
+        assertEquals(10, deletes);
+    }
+
+    @Test
+    public void testDeletesDeletedNodeFromAllIndexes() throws Exception {
+        Node unlabeled;
+        try (Transaction tx = db.beginTx()) {
+            unlabeled = db.createNode();
+            tx.success();
+        }
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            node.delete();
+            unlabeled.delete();
+            tx.success();
+        }
+        Map<String, Integer> deletes = new HashMap<>();
+        for (JsonObject[] item : client.bulkItems()) {
+            JsonObject delete = item[0].getAsJsonObject("delete");
+            assertNull(item[1]);
+            deletes.merge(delete.get("_index").getAsString() + "/" + delete.get("_type").getAsString(), 1, Integer::sum);
+        }
+        assertEquals(2, deletes.get(INDEX_ALL + "/node").intValue());
+        assertEquals(1, deletes.get(INDEX + "/" + LABEL).intValue());
+    }
+
+    @Test
+    public void testUnindexedLabelChangesUpdateLabelsField() throws Exception {
+        register(null);
+        assertLabelsAfterLabelChanges();
+    }
+
+    @Test
+    public void testUnindexedLabelChangesUpdateLabelsFieldInWorkers() throws Exception {
+        register(null);
+        handler.setRenderWorkers(db, 2);
+        assertLabelsAfterLabelChanges();
+    }
+
+    private void assertLabelsAfterLabelChanges() throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            node.addLabel(Label.label("Other"));
+            tx.success();
+        }
+        awaitActions(1);
+        JsonObject[] item = client.bulkItems().get(0);
+        assertEquals(INDEX, item[0].getAsJsonObject("index").get("_index").getAsString());
+        assertEquals(2, item[1].getAsJsonArray("labels").size());
+
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            node.removeLabel(Label.label("Other"));
+            tx.success();
+        }
+        awaitActions(1);
+        item = client.bulkItems().get(0);
+        assertEquals(INDEX, item[0].getAsJsonObject("index").get("_index").getAsString());
+        assertEquals(1, item[1].getAsJsonArray("labels").size());
+    }
+
+    @Test
+    public void testRemovedLabelUpdatesIndexForAllNodes() throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            node.removeLabel(Label.label(LABEL));
+            tx.success();
+        }
+        Map<String, JsonObject[]> items = itemsByIndex();
+        assertTrue(items.get(INDEX)[0].has("delete"));
+        assertTrue(items.get(INDEX_ALL)[0].has("index"));
+        assertEquals(0, items.get(INDEX_ALL)[1].getAsJsonArray("labels").size());
+    }
+
+    @Test
+    public void testDeletesManyNodes() throws Exception {
+        register(null);
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 1000; i++) {
+                Node node = db.createNode(Label.label(LABEL));
+                node.setProperty("foo", "bar");
+                node.setProperty("counter", i);
+            }
+            tx.success();
+        }
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            for (Node node : db.getAllNodes()) {
+                node.delete();
+            }
+            tx.success();
+        }
+        // split at the default of 1000 actions per bulk
+        assertEquals(2, client.bodies().size());
+        assertEquals(1001, client.bulkActions().size());
+    }
+
+    @Test
+    public void testRendersInWorkers() throws Exception {
+        handler.setRenderWorkers(db, 2);
+        Relationship relationship;
+        try (Transaction tx = db.beginTx()) {
+            Node other = db.createNode(Label.label(LABEL));
+            other.setProperty("foo", "baz");
+            other.setProperty("counter", 0);
+            relationship = node.createRelationshipTo(other, RelationshipType.withName(TYPE));
+            relationship.setProperty("since", 2010);
+            node.setProperty("counter", 1);
+            tx.success();
+        }
+        // both nodes in both indexes and the relationship
+        awaitActions(5);
+        Map<String, JsonObject[]> items = new HashMap<>();
+        for (JsonObject[] item : client.bulkItems()) {
+            JsonObject action = item[0].getAsJsonObject("index");
+            items.put(action.get("_index").getAsString() + "/" + action.get("_id").getAsString(), item);
+        }
+        assertEquals(1, items.get(INDEX + "/" + node.getId())[1].getAsJsonObject("properties").get("counter").getAsInt());
+        assertEquals(2010, items.get(EDGES + "/" + relationship.getId())[1].getAsJsonObject("properties").get("since").getAsInt());
+
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            relationship.delete();
+            tx.success();
+        }
+        awaitActions(1);
+        JsonObject delete = client.bulkActions().get(0).getAsJsonObject("delete");
+        assertEquals(EDGES, delete.get("_index").getAsString());
+        assertEquals(TYPE, delete.get("_type").getAsString());
+    }
+
+    @Test
+    public void testCapturesOnlyIndexedChanges() throws Exception {
+        String spec = INDEX + ":" + LABEL + "(foo,counter)," + EDGES + ":[" + TYPE + "](since)";
+        IndexedTokens tokens = new IndexedTokens(new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(spec),
+                ElasticSearchIndexSpecParser.parseRelationshipIndexSpec(spec), true, true));
+        List<ElasticSearchChanges> captured = new ArrayList<>();
+        TransactionEventHandler<Object> capture = new TransactionEventHandler.Adapter<Object>() {
+            @Override
+            public Object beforeCommit(TransactionData data) throws Exception {
+                captured.add(ElasticSearchChanges.capture(data, 1, 0, tokens, false, false,
+                        Collections.emptySet(), Collections.emptySet())[0]);
+                return null;
+            }
+        };
+        db.registerTransactionEventHandler(capture);
+        try {
+            try (Transaction tx = db.beginTx()) {
+                Node other = db.createNode(Label.label("Other"));
+                other.setProperty("foo", "bar");
+                node.setProperty("other", "changed");
+                node.createRelationshipTo(other, RelationshipType.withName("OTHER")).setProperty("since", 2010);
+                tx.success();
+            }
+            try (Transaction tx = db.beginTx()) {
+                node.setProperty("counter", 5);
+                node.setProperty("other", "again");
+                node.addLabel(Label.label("Other"));
+                tx.success();
+            }
+        } finally {
+            db.unregisterTransactionEventHandler(capture);
+        }
+        assertTrue(captured.get(0).isEmpty());
+
+        ElasticSearchChanges changes = captured.get(1);
+        List<String> keys = new ArrayList<>();
+        changes.assignedNodeProperties().forEach(entry -> keys.add(entry.key()));
+        assertEquals(asList("counter"), keys);
+        assertFalse(changes.assignedLabels().iterator().hasNext());
+    }
+
+    @Test
+    public void testRendersChangesOfAnEntityInCommitOrder() throws Exception {
+        handler.setRenderWorkers(db, 2);
+        for (int i = 0; i < 20; i++) {
+            Node created = createNode();
+            try (Transaction tx = db.beginTx()) {
+                created.delete();
+                tx.success();
+            }
+        }
+        // creations rendered after the delete are skipped, the deletes always come
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.bulkActions().stream().filter(action -> action.has("delete")).count() < 40
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Map<String, String> last = new HashMap<>();
+        for (JsonObject action : client.bulkActions()) {
+            String operation = action.entrySet().iterator().next().getKey();
+            JsonObject meta = action.getAsJsonObject(operation);
+            last.put(meta.get("_index").getAsString() + "/" + meta.get("_id").getAsString(), operation);
+        }
+        assertEquals(40, last.size());
+        assertTrue(last.values().stream().allMatch("delete"::equals));
+    }
+
+    private static final String EVENTS = "events-{created:yyyy.MM}";
+
+    private Node createEvent(Object created) {
+        try (Transaction tx = db.beginTx()) {
+            Node event = db.createNode(Label.label("Event"));
+            event.setProperty("name", "launch");
+            if (created != null) event.setProperty("created", created);
+            tx.success();
+            return event;
+        }
+    }
+
+    private JsonObject onlyAction(String operation) {
+        assertEquals(1, client.bulkActions().size());
+        return client.bulkActions().get(0).getAsJsonObject(operation);
+    }
+
+    @Test
+    public void testIndexesIntoIndexOfTemplate() throws Exception {
+        register(EVENTS + ":Event(name),logs-{id%4}:Log(name)", null);
+        createEvent(1326153600000L);
+        assertEquals("events-2012.01", onlyAction("index").get("_index").getAsString());
+
+        client.clear();
+        createEvent("2016-05-04T10:00:00Z");
+        assertEquals("events-2016.05", onlyAction("index").get("_index").getAsString());
+
+        client.clear();
+        createEvent(null);
+        assertEquals("events-none", onlyAction("index").get("_index").getAsString());
+
+        client.clear();
+        Node log;
+        try (Transaction tx = db.beginTx()) {
+            log = db.createNode(Label.label("Log"));
+            log.setProperty("name", "started");
+            tx.success();
+        }
+        assertEquals("logs-" + log.getId() % 4, onlyAction("index").get("_index").getAsString());
+    }
+
+    @Test
+    public void testMovesDocumentWhenTemplatePropertyChanges() throws Exception {
+        register(EVENTS + ":Event(name)", null);
+        handler.setPartialUpdates(true);
+        Node event = createEvent(1326153600000L);
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            event.setProperty("created", 1462356000000L);
+            tx.success();
+        }
+        Map<String, String> operations = new HashMap<>();
+        for (JsonObject action : client.bulkActions()) {
+            String operation = action.entrySet().iterator().next().getKey();
+            operations.put(action.getAsJsonObject(operation).get("_index").getAsString(), operation);
+        }
+        assertEquals("delete", operations.get("events-2012.01"));
+        assertEquals("index", operations.get("events-2016.05"));
+        assertEquals(2, operations.size());
+
+        // changes that don't move it are partial updates in place
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            event.setProperty("name", "landing");
+            tx.success();
+        }
+        assertEquals("events-2016.05", onlyAction("update").get("_index").getAsString());
+    }
+
+    @Test
+    public void testDeletesFromIndexOfTemplate() throws Exception {
+        register(EVENTS + ":Event(name)", null);
+        Node event = createEvent(1326153600000L);
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            event.delete();
+            tx.success();
+        }
+        assertEquals("events-2012.01", onlyAction("delete").get("_index").getAsString());
+
+        // render workers capture the values the index depends on
+        handler.setRenderWorkers(db, 2);
+        event = createEvent(1462356000000L);
+        awaitActions(2);
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            event.delete();
+            tx.success();
+        }
+        awaitActions(1);
+        assertEquals("events-2016.05", onlyAction("delete").get("_index").getAsString());
+    }
+
+    private Node createPerson(String tenant) {
+        try (Transaction tx = db.beginTx()) {
+            Node person = db.createNode(Label.label("Person"));
+            person.setProperty("name", "alice");
+            person.setProperty("tenant_id", tenant);
+            tx.success();
+            return person;
+        }
+    }
+
+    private static String routing(JsonObject meta) {
+        return meta.has("_routing") ? meta.get("_routing").getAsString() : null;
+    }
+
+    @Test
+    public void testRoutesByRoutingProperty() throws Exception {
+        register("people:Person(name)@tenant_id", null);
+        handler.setPartialUpdates(true);
+        Node person = createPerson("acme");
+        assertEquals("acme", routing(onlyAction("index")));
+
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            person.setProperty("name", "bob");
+            tx.success();
+        }
+        assertEquals("acme", routing(onlyAction("update")));
+
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            person.delete();
+            tx.success();
+        }
+        assertEquals("acme", routing(onlyAction("delete")));
+
+        // without a value the document is routed by its id
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(Label.label("Person")).setProperty("name", "carol");
+            tx.success();
+        }
+        assertNull(routing(onlyAction("index")));
+    }
+
+    @Test
+    public void testMovesDocumentWhenRoutingChanges() throws Exception {
+        register("people:Person(name)@tenant_id", null);
+        handler.setPartialUpdates(true);
+        Node person = createPerson("acme");
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            person.setProperty("tenant_id", "globex");
+            tx.success();
+        }
+        // the delete comes first, both routings may lead to the same shard
+        List<JsonObject> actions = client.bulkActions();
+        assertEquals(2, actions.size());
+        assertEquals("acme", routing(actions.get(0).getAsJsonObject("delete")));
+        assertEquals("globex", routing(actions.get(1).getAsJsonObject("index")));
+
+        // removing the label deletes with the routing from before the transaction
+        client.clear();
+        try (Transaction tx = db.beginTx()) {
+            person.setProperty("tenant_id", "initech");
+            person.removeLabel(Label.label("Person"));
+            tx.success();
+        }
+        assertEquals("globex", routing(onlyAction("delete")));
+    }
+
+    @Test
+    public void testIndexesNodeWithoutSpecProperties() throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(Label.label(LABEL)).setProperty("other", "value");
+            tx.success();
+        }
+        Map<String, JsonObject[]> items = itemsByIndex();
+        assertEquals(0, items.get(INDEX)[1].getAsJsonObject("properties").entrySet().size());
+        assertEquals(1, items.get(INDEX_ALL)[1].getAsJsonObject("properties").entrySet().size());
+    }
+
+    @Test
+    public void testIndexesLabelIntoSeveralIndexes() throws Exception {
+        register(INDEX + ":" + LABEL + "(foo)," + "search:" + LABEL + "(foo,counter)," + "other:Other(foo)", INDEX_ALL);
+        createNode();
+        Map<String, JsonObject[]> items = itemsByIndex();
+        assertEquals(3, items.size());
+        assertEquals(1, items.get(INDEX)[1].getAsJsonObject("properties").entrySet().size());
+        assertEquals(2, items.get("search")[1].getAsJsonObject("properties").entrySet().size());
+        assertEquals(3, items.get(INDEX_ALL)[1].getAsJsonObject("properties").entrySet().size());
+
+        // a change of counter only concerns the index that has it
+        client.clear();
+        setProperty("counter", 1);
+        assertEquals(new HashSet<>(asList("search", INDEX_ALL)), itemsByIndex().keySet());
+    }
+
+    @Test
+    public void testRendersSharedProjectionOnce() throws Exception {
+        register(INDEX + ":" + LABEL + "(foo)," + "search:" + LABEL + "(foo)," + "other:Other(foo)", null);
+        Node node;
+        try (Transaction tx = db.beginTx()) {
+            node = db.createNode(Label.label(LABEL), Label.label("Other"));
+            node.setProperty("foo", "bar");
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            List<String> sources = new ArrayList<>();
+            for (BulkableAction action : handler.indexRequests(node, 0).values()) {
+                sources.add((String) action.getData(new Gson()));
+            }
+            assertEquals(3, sources.size());
+            assertSame(sources.get(0), sources.get(1));
+            assertSame(sources.get(0), sources.get(2));
+            tx.success();
+        }
+    }
+
+    private void createNodes(int count) {
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < count; i++) {
+                Node node = db.createNode(Label.label(LABEL));
+                node.setProperty("foo", "bar");
+                node.setProperty("counter", i);
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    public void testSplitsLargeTransactionsIntoBulks() throws Exception {
+        handler.setBulkLimits(4, 0);
+        createNodes(5);
+        List<String> bodies = client.bodies();
+        assertEquals(3, bodies.size());
+        assertEquals(10, client.bulkActions().size());
+        assertEquals(8, bodies.get(0).split("\n").length);
+        assertEquals(4, bodies.get(2).split("\n").length);
+    }
+
+    @Test
+    public void testSendsChunksOneAfterTheOther() throws Exception {
+        handler.setBulkLimits(4, 0);
+        handler.setUseAsyncJest(true);
+        client.setHold(true);
+        createNodes(5);
+        assertEquals(1, client.bodies().size());
+        client.releaseHeld();
+        await(2);
+        client.releaseHeld();
+        await(3);
+        client.setHold(false);
+        client.releaseHeld();
+
+        Map<String, List<Integer>> counters = new HashMap<>();
+        for (JsonObject[] item : client.bulkItems()) {
+            String index = item[0].getAsJsonObject("index").get("_index").getAsString();
+            counters.computeIfAbsent(index, key -> new ArrayList<>()).add(item[1].getAsJsonObject("properties").get("counter").getAsInt());
+        }
+        assertEquals(2, counters.size());
+        for (List<Integer> sent : counters.values()) {
+            assertEquals(asList(0, 1, 2, 3, 4), sent);
+        }
+    }
+
+    @Test
+    public void testSendsNoChunksAfterADroppedOne() throws Exception {
+        File file = new File(folder.getRoot(), "dead-letters.json");
+        handler.setDeadLetters(new ElasticSearchDeadLetters(file));
+        handler.setBulkLimits(4, 0);
+        // refuses the second chunk as if the limit was reached
+        handler.setInFlightLimiter(new ElasticSearchInFlightLimiter(1, ElasticSearchInFlightLimiter.OverflowPolicy.drop) {
+            private int acquired;
+
+            @Override
+            public synchronized boolean acquire() throws InterruptedException {
+                return ++acquired != 2 && super.acquire();
+            }
+        });
+        createNodes(5);
+        assertEquals(1, client.bodies().size());
+        assertEquals(4, handler.dropped());
+        assertEquals(2, deadLetters(file).size());
+    }
+
+    @Test
+    public void testWritesLargeTransactionsToTheOutboxInChunks() throws Exception {
+        ElasticSearchOutbox outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        handler.setOutbox(outbox);
+        handler.setBulkLimits(4, 0);
+        createNodes(5);
+        assertEquals(0, client.bodies().size());
+        ElasticSearchOutbox.Batch batch = outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0);
+        assertEquals(3, batch.records);
+        assertEquals(20, batch.body.split("\n").length);
+        outbox.close();
+    }
+
+    @Test
+    public void testRecordsTransactionsInTheOutboxBeforeTheyCommit() throws Exception {
+        ElasticSearchOutbox outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        handler.setOutbox(outbox);
+        TransactionEventHandler<Object> failing = new TransactionEventHandler.Adapter<Object>() {
+            @Override
+            public Object beforeCommit(TransactionData data) throws Exception {
+                // the record of the transaction is prepared when the next handler runs
+                assertTrue(outbox.writePosition() > outbox.acknowledged());
+                assertNull(outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0));
+                throw new IllegalStateException("rolled back");
+            }
+        };
+        db.registerTransactionEventHandler(failing);
+        try {
+            createNodes(1);
+        } catch (Exception e) {
+            // expected
+        } finally {
+            db.unregisterTransactionEventHandler(failing);
+        }
+        createNodes(2);
+
+        // the record of the rolled back transaction is skipped
+        ElasticSearchOutbox.Batch batch = outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0);
+        assertEquals(1, batch.records);
+        assertEquals(8, batch.body.split("\n").length);
+        outbox.close();
+    }
+
+    @Test
+    public void testSplitsBulksBySize() throws Exception {
+        handler.setBulkLimits(1000, 1);
+        createNodes(3);
+        assertEquals(6, client.bodies().size());
+        assertEquals(6, client.bulkActions().size());
+    }
+
+    @Test
+    public void testDropsBulksBeyondInFlightLimit() throws Exception {
+        ElasticSearchInFlightLimiter limiter = new ElasticSearchInFlightLimiter(1, ElasticSearchInFlightLimiter.OverflowPolicy.drop);
+        handler.setInFlightLimiter(limiter);
+        handler.setUseAsyncJest(true);
+        client.setHold(true);
+        setProperty("counter", 1);
+        setProperty("counter", 2);
+        assertEquals(1, client.bodies().size());
+        assertEquals(2, handler.dropped());
+
+        client.releaseHeld();
+        assertEquals(0, limiter.inFlight());
+        setProperty("counter", 3);
+        assertEquals(2, client.bodies().size());
+    }
+
+    @Test
+    public void testShrinksInFlightLimitOnRejection() throws Exception {
+        ElasticSearchInFlightLimiter limiter = new ElasticSearchInFlightLimiter(4, ElasticSearchInFlightLimiter.OverflowPolicy.block);
+        handler.setInFlightLimiter(limiter);
+        client.respondWith(200, "{\"took\":1,\"errors\":true,\"items\":[" +
+                "{\"index\":{\"_index\":\"test-index\",\"_type\":\"Label\",\"_id\":\"0\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}]}");
+        setProperty("counter", 1);
+        assertEquals(2, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    public void testVersionsDocumentsExternally() throws Exception {
+        handler.setExternalVersions(true);
+        setProperty("counter", 1);
+        setProperty("counter", 2);
+        List<JsonObject> actions = client.bulkActions();
+        assertEquals(4, actions.size());
+        long last = 0;
+        for (JsonObject action : actions) {
+            JsonObject meta = action.getAsJsonObject("index");
+            assertEquals("external", meta.get("_version_type").getAsString());
+            long version = meta.get("_version").getAsLong();
+            assertTrue(version >= last);
+            last = version;
+        }
+        assertTrue(actions.get(0).getAsJsonObject("index").get("_version").getAsLong()
+                < actions.get(2).getAsJsonObject("index").get("_version").getAsLong());
+    }
+
+    @Test
+    public void testSendsUnversionedDocumentsByDefault() throws Exception {
+        setProperty("counter", 1);
+        for (JsonObject action : client.bulkActions()) {
+            assertTrue(!action.getAsJsonObject("index").has("_version"));
+        }
+    }
+
+    @Test
+    public void testIgnoresVersionConflicts() throws Exception {
+        register(null);
+        File file = new File(folder.getRoot(), "dead-letters.json");
+        handler.setDeadLetters(new ElasticSearchDeadLetters(file));
+        handler.setRetries(3, 1);
+        handler.setExternalVersions(true);
+        client.respondOnceWith(200, bulkResponse(409));
+        setProperty("counter", 1);
+        Thread.sleep(50);
+        assertEquals(1, client.bodies().size());
+        assertTrue(!file.exists() || file.length() == 0);
+    }
+
+    @Test
+    public void testSendsOneBulkPerLaneAtATime() throws Exception {
+        handler.setLanes(1);
+        handler.setUseAsyncJest(true);
+        client.setHold(true);
+        setProperty("counter", 1);
+        setProperty("counter", 2);
+        setProperty("counter", 3);
+        assertEquals(1, client.bodies().size());
+
+        client.releaseHeld();
+        await(2);
+        List<JsonObject[]> items = client.bulkItems();
+        assertEquals(6, items.size());
+        assertEquals(2, items.get(2)[1].getAsJsonObject("properties").get("counter").getAsInt());
+        assertEquals(3, items.get(5)[1].getAsJsonObject("properties").get("counter").getAsInt());
+        client.setHold(false);
+        client.releaseHeld();
+    }
+
+    @Test
+    public void testRetriesWithinTheLane() throws Exception {
+        handler.setLanes(1);
+        handler.setRetries(3, 20);
+        client.respondOnceWith(503, "{}");
+        setProperty("counter", 1);
+        setProperty("counter", 2);
+        await(3);
+        List<JsonObject[]> items = client.bulkItems();
+        assertEquals(6, items.size());
+        // the retry of the failed bulk goes before the newer change of the document
+        assertEquals(1, items.get(2)[1].getAsJsonObject("properties").get("counter").getAsInt());
+        assertEquals(2, items.get(5)[1].getAsJsonObject("properties").get("counter").getAsInt());
+    }
+
+    @Test
+    public void testSendsWholeDocumentsWithVersionsWithoutLanes() throws Exception {
+        handler.setPartialUpdates(true);
+        handler.setExternalVersions(true);
+        setProperty("counter", 1);
+        for (JsonObject action : client.bulkActions()) {
+            assertTrue(action.has("index"));
+        }
+
+        client.clear();
+        handler.setLanes(1);
+        setProperty("counter", 2);
+        for (JsonObject action : client.bulkActions()) {
+            assertTrue(action.has("update"));
+        }
+    }
+
+    /**
+     * A bulk response with one item per status, for documents 0, 1, ... of the test index.
+     */
+    private static String bulkResponse(int... statuses) {
+        StringBuilder items = new StringBuilder();
+        boolean errors = false;
+        for (int i = 0; i < statuses.length; i++) {
+            if (i > 0) items.append(',');
+            items.append("{\"index\":{\"_index\":\"" + INDEX + "\",\"_type\":\"" + LABEL + "\",\"_id\":\"" + i + "\",\"status\":" + statuses[i]);
+            if (statuses[i] == 429) items.append(",\"error\":{\"type\":\"es_rejected_execution_exception\"}");
+            else if (statuses[i] == 409) items.append(",\"error\":{\"type\":\"version_conflict_engine_exception\"}");
+            else if (statuses[i] >= 300) items.append(",\"error\":{\"type\":\"mapper_parsing_exception\"}");
+            items.append("}}");
+            errors |= statuses[i] >= 300;
+        }
+        return "{\"took\":1,\"errors\":" + errors + ",\"items\":[" + items + "]}";
+    }
+
+    private void awaitActions(int actions) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.bulkActions().size() < actions && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(actions, client.bulkActions().size());
+    }
+
+    private void await(int bodies) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.bodies().size() < bodies && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(bodies, client.bodies().size());
+    }
+
+    private List<String> deadLetters(File file) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((!file.exists() || file.length() == 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return Files.readAllLines(file.toPath());
+    }
+
+    @Test
+    public void testRetriesOnlyFailedItems() throws Exception {
+        register(null);
+        handler.setRetries(3, 1);
+        Node other = createNode();
+        client.clear();
+        client.respondOnceWith(200, bulkResponse(201, 429));
+        try (Transaction tx = db.beginTx()) {
+            node.setProperty("counter", 1);
+            other.setProperty("counter", 1);
+            tx.success();
+        }
+        await(2);
+        List<JsonObject[]> items = client.bulkItems();
+        assertEquals(3, items.size());
+        assertEquals(items.get(1)[0], items.get(2)[0]);
+        assertEquals(items.get(1)[1], items.get(2)[1]);
+    }
+
+    @Test
+    public void testWritesRefusedItemsToDeadLetters() throws Exception {
+        register(null);
+        File file = new File(folder.getRoot(), "dead-letters.json");
+        handler.setDeadLetters(new ElasticSearchDeadLetters(file));
+        handler.setRetries(3, 1);
+        client.respondOnceWith(200, bulkResponse(400));
+        setProperty("counter", 1);
+
+        List<String> lines = deadLetters(file);
+        assertEquals(1, lines.size());
+        JsonObject letter = new Gson().fromJson(lines.get(0), JsonObject.class);
+        assertTrue(letter.get("error").getAsString().contains("mapper_parsing_exception"));
+        assertTrue(letter.get("request").getAsString().contains("\"counter\":1"));
+        Thread.sleep(50);
+        assertEquals(1, client.bodies().size());
+    }
+
+    @Test
+    public void testRetriesByErrorTypeNotReason() throws Exception {
+        register(null);
+        File file = new File(folder.getRoot(), "dead-letters.json");
+        handler.setDeadLetters(new ElasticSearchDeadLetters(file));
+        handler.setRetries(3, 1);
+        Node other = createNode();
+        client.clear();
+        client.respondOnceWith(200, "{\"took\":1,\"errors\":true,\"items\":[" +
+                "{\"index\":{\"_index\":\"" + INDEX + "\",\"_type\":\"" + LABEL + "\",\"_id\":\"0\",\"status\":400,\"error\":" +
+                "{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse [timeout]\"}}}," +
+                "{\"index\":{\"_index\":\"" + INDEX + "\",\"_type\":\"" + LABEL + "\",\"_id\":\"1\",\"status\":500,\"error\":" +
+                "{\"type\":\"remote_transport_exception\",\"caused_by\":{\"type\":\"receive_timeout_transport_exception\"}}}}]}");
+        try (Transaction tx = db.beginTx()) {
+            node.setProperty("counter", 1);
+            other.setProperty("counter", 1);
+            tx.success();
+        }
+        await(2);
+        // only the timed out item is sent again, the mapping error goes to the dead letters
+        assertEquals(3, client.bulkItems().size());
+        assertEquals(client.bulkItems().get(1)[0], client.bulkItems().get(2)[0]);
+        assertEquals(1, deadLetters(file).size());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() throws Exception {
+        register(null);
+        File file = new File(folder.getRoot(), "dead-letters.json");
+        handler.setDeadLetters(new ElasticSearchDeadLetters(file));
+        handler.setRetries(2, 1);
+        client.respondWith(503, "{\"error\":\"unavailable\"}");
+        setProperty("counter", 1);
+
+        assertEquals(1, deadLetters(file).size());
+        assertEquals(3, client.bodies().size());
+    }
+}
@@ -0,0 +1,125 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.Delete;
+import io.searchbox.core.Index;
+import io.searchbox.params.Parameters;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchHttpTransportTest {
+    private FakeElasticSearchServer server;
+    private ElasticSearchHttpTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeElasticSearchServer();
+        transport = transport(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.close();
+        server.close();
+    }
+
+    private ElasticSearchHttpTransport transport(boolean compression) {
+        return transport(60000, compression);
+    }
+
+    private ElasticSearchHttpTransport transport(long keepAlive, boolean compression) {
+        return new ElasticSearchHttpTransport(Collections.singletonList(server.url()), 4, 4, keepAlive, 5000, 5000, compression);
+    }
+
+    private List<BulkableAction> actions() {
+        return Arrays.asList(
+                new Index.Builder("{\"name\":\"foo\"}").index("people").type("Person").id("1")
+                        .setParameter(Parameters.VERSION, 42L).setParameter(Parameters.VERSION_TYPE, "external").build(),
+                new Index.Builder("{\"name\":\"bar \\\"baz\\\"\"}").index("people").type("Person").id("2").build(),
+                new Delete.Builder("3").index("people").type("Person").build());
+    }
+
+    @Test
+    public void testWritesTheSameBodyAsJest() throws Exception {
+        List<BulkableAction> actions = actions();
+        String expected = new Bulk.Builder().addAction(actions).build().getData(new Gson());
+        assertEquals(expected, EntityUtils.toString(transport.body(actions)));
+    }
+
+    @Test
+    public void testSendsBulks() throws Exception {
+        BulkResult result = transport.bulk(actions());
+        assertTrue(result.isSucceeded());
+        assertEquals(3, result.getItems().size());
+        assertEquals("foo", server.get("people", "Person", "1").get("name").getAsString());
+        assertEquals("bar \"baz\"", server.get("people", "Person", "2").get("name").getAsString());
+        assertNull(server.get("people", "Person", "3"));
+        assertEquals(1, server.bulks());
+    }
+
+    @Test
+    public void testSendsBulksAsync() throws Exception {
+        CompletableFuture<BulkResult> result = new CompletableFuture<>();
+        transport.bulkAsync(actions(), new JestResultHandler<BulkResult>() {
+            @Override
+            public void completed(BulkResult bulkResult) {
+                result.complete(bulkResult);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        assertTrue(result.get(10, TimeUnit.SECONDS).isSucceeded());
+        assertEquals(2, server.count("people"));
+    }
+
+    @Test
+    public void testReportsFailedBulks() throws Exception {
+        server.failNextBulks(1, 429);
+        BulkResult result = transport.bulk(actions());
+        assertFalse(result.isSucceeded());
+        assertEquals(429, result.getResponseCode());
+    }
+
+    @Test
+    public void testSendsCompressedBulks() throws Exception {
+        transport.close();
+        transport = transport(true);
+        assertTrue(transport.bulk(actions()).isSucceeded());
+        assertEquals(2, server.count("people"));
+        assertEquals(1, server.compressedRequests());
+    }
+
+    @Test
+    public void testReusesConnectionsWithinKeepAlive() throws Exception {
+        transport.bulk(actions());
+        transport.bulk(actions());
+        assertEquals(1, server.connections());
+
+        transport.close();
+        transport = transport(1, false);
+        transport.bulk(actions());
+        Thread.sleep(50);
+        transport.bulk(actions());
+        assertEquals(3, server.connections());
+    }
+}
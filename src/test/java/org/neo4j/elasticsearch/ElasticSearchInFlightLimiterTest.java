@@ -0,0 +1,79 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.elasticsearch.ElasticSearchInFlightLimiter.OverflowPolicy.block;
+import static org.neo4j.elasticsearch.ElasticSearchInFlightLimiter.OverflowPolicy.drop;
+
+public class ElasticSearchInFlightLimiterTest {
+
+    @Test
+    public void testRefusesBeyondLimit() throws Exception {
+        ElasticSearchInFlightLimiter limiter = new ElasticSearchInFlightLimiter(2, drop);
+        assertTrue(limiter.acquire());
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.acquire());
+        limiter.release(false);
+        assertTrue(limiter.acquire());
+        assertEquals(2, limiter.inFlight());
+    }
+
+    @Test
+    public void testHalvesLimitOnRejectionAndRecovers() throws Exception {
+        ElasticSearchInFlightLimiter limiter = new ElasticSearchInFlightLimiter(8, drop);
+        assertTrue(limiter.acquire());
+        limiter.release(true);
+        assertEquals(4, limiter.limit());
+        assertTrue(limiter.acquire());
+        limiter.release(true);
+        assertEquals(2, limiter.limit());
+
+        for (int i = 0; i < 2; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release(false);
+        }
+        assertEquals(3, limiter.limit());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release(false);
+        }
+        assertEquals(8, limiter.limit());
+    }
+
+    @Test
+    public void testBlocksUntilReleased() throws Exception {
+        ElasticSearchInFlightLimiter limiter = new ElasticSearchInFlightLimiter(1, block);
+        assertTrue(limiter.acquire());
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                if (limiter.acquire()) acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(false);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    @Test
+    public void testAwaitsIdle() throws Exception {
+        ElasticSearchInFlightLimiter limiter = new ElasticSearchInFlightLimiter(2, block);
+        assertTrue(limiter.awaitIdle(0));
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.awaitIdle(50));
+        Thread thread = new Thread(() -> limiter.release(false));
+        thread.start();
+        assertTrue(limiter.awaitIdle(5000));
+        thread.join();
+    }
+}
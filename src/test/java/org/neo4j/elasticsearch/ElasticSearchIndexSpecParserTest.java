@@ -12,6 +12,7 @@ import org.junit.Test;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.*;
 import static org.neo4j.elasticsearch.ElasticSearchIndexSpecParser.parseIndexSpec;
+import static org.neo4j.elasticsearch.ElasticSearchIndexSpecParser.parseRelationshipIndexSpec;
 
 import org.neo4j.graphdb.Label;
 
@@ -35,6 +36,73 @@ public class ElasticSearchIndexSpecParserTest {
         assertEquals(0, rv.size());
     }
 
+    @Test
+    public void testParseRelationshipIndexSpec() throws ParseException {
+        String spec = "index_name:Label(foo),edges:[KNOWS](since,weight),other_edges:[LIVES_IN](since)";
+        Map<String, List<ElasticSearchIndexSpec>> rv = parseRelationshipIndexSpec(spec);
+        assertEquals(new HashSet<>(asList("KNOWS", "LIVES_IN")), rv.keySet());
+        assertEquals("edges", rv.get("KNOWS").get(0).getIndexName());
+        assertEquals(new HashSet<>(asList("since", "weight")), rv.get("KNOWS").get(0).getProperties());
+        assertEquals(new HashSet<>(asList("Label")), parseIndexSpec(spec).keySet());
+    }
+
+    @Test
+    public void testParseIndexNameTemplates() throws ParseException {
+        String spec = "events-{created:yyyy.MM}:Event(name),logs-{id%4}-v2:Log(message),calls-{at:yyyy}:[CALLED](at)";
+        Map<String, List<ElasticSearchIndexSpec>> rv = parseIndexSpec(spec);
+        ElasticSearchIndexSpec events = rv.get("Event").get(0);
+        assertEquals("events-{created:yyyy.MM}", events.getIndexName());
+        assertEquals("events-*", events.getIndexPattern());
+        assertEquals(new HashSet<>(asList("created")), events.getTemplateProperties());
+        assertEquals("events-2012.01", events.indexName(1, key -> 1326153600000L));
+        assertEquals("events-2016.05", events.indexName(1, key -> "2016-05-04"));
+        assertEquals("events-none", events.indexName(1, key -> null));
+
+        ElasticSearchIndexSpec logs = rv.get("Log").get(0);
+        assertEquals("logs-*-v2", logs.getIndexPattern());
+        assertTrue(logs.getTemplateProperties().isEmpty());
+        assertEquals("logs-3-v2", logs.indexName(7, key -> null));
+
+        assertEquals("calls-2016", parseRelationshipIndexSpec(spec).get("CALLED").get(0).indexName(1, key -> "2016-05-04T10:00:00"));
+        assertFalse(new ElasticSearchIndexSpec("plain", new HashSet<>()).isTemplate());
+    }
+
+    @Test
+    public void testParseRoutingProperty() throws ParseException {
+        String spec = "people:Person(name)@tenant_id,events-{created:yyyy}:Event(name)@tenant_id,knows:[KNOWS](since)@tenant_id,plain:Plain(name)";
+        ElasticSearchIndexSpec people = parseIndexSpec(spec).get("Person").get(0);
+        assertEquals("people", people.getIndexName());
+        assertEquals(new HashSet<>(asList("name")), people.getProperties());
+        assertEquals("tenant_id", people.getRoutingProperty());
+        assertEquals("acme", people.routing(key -> "acme"));
+        assertEquals("42", people.routing(key -> 42L));
+        assertNull(people.routing(key -> null));
+        assertEquals(new HashSet<>(asList("created", "tenant_id")), parseIndexSpec(spec).get("Event").get(0).getLocationProperties());
+        assertEquals("tenant_id", parseRelationshipIndexSpec(spec).get("KNOWS").get(0).getRoutingProperty());
+
+        ElasticSearchIndexSpec plain = parseIndexSpec(spec).get("Plain").get(0);
+        assertNull(plain.getRoutingProperty());
+        assertNull(plain.routing(key -> "acme"));
+        assertTrue(plain.getLocationProperties().isEmpty());
+    }
+
+    @Test(expected=ParseException.class)
+    public void testIndexSpecBadTemplate() throws ParseException {
+        parseIndexSpec("index-{foo}:Label(foo,bar)");
+    }
+
+    @Test
+    public void testParseSeveralIndexesPerLabel() throws ParseException {
+        Map<String, List<ElasticSearchIndexSpec>> rv =
+                parseIndexSpec("people:Person(name),people_search:Person(name,bio),places:Place(name)");
+        assertEquals(2, rv.get("Person").size());
+        assertEquals("people", rv.get("Person").get(0).getIndexName());
+        assertEquals("people_search", rv.get("Person").get(1).getIndexName());
+        assertEquals(new HashSet<>(asList("name", "bio")), rv.get("Person").get(1).getProperties());
+        assertEquals(1, rv.get("Place").size());
+        assertEquals(2, parseRelationshipIndexSpec("knows:[KNOWS](since),knows_weight:[KNOWS](weight)").get("KNOWS").size());
+    }
+
     @Test(expected=ParseException.class)
     public void testIndexSpecBadSyntaxDuplicateIndex() throws ParseException {
     	Map rv = parseIndexSpec("index_name:Label(foo,bar),index_name:Label(quux)");
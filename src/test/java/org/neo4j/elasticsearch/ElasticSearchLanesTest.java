@@ -0,0 +1,66 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Delete;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchLanesTest {
+
+    private final List<List<BulkableAction>> sent = new ArrayList<>();
+    private final List<Runnable> answers = new ArrayList<>();
+
+    private ElasticSearchLanes lanes(int count) {
+        return new ElasticSearchLanes(count, (actions, committed, done) -> {
+            sent.add(actions);
+            answers.add(done);
+        }, Runnable::run);
+    }
+
+    private static BulkableAction delete(String id) {
+        return new Delete.Builder(id).index("index").type("type").build();
+    }
+
+    @Test
+    public void testSendsActionsForADocumentInTheSameLane() throws Exception {
+        ElasticSearchLanes lanes = lanes(4);
+        for (int i = 0; i < 100; i++) {
+            BulkableAction action = delete(String.valueOf(i));
+            assertEquals(lanes.lane(action), lanes.lane(delete(String.valueOf(i))));
+        }
+        lanes.submit(Arrays.asList(delete("1"), delete("2"), delete("3"), delete("4"), delete("5")), 0);
+        int actions = 0;
+        for (List<BulkableAction> bulk : sent) {
+            int lane = lanes.lane(bulk.get(0));
+            for (BulkableAction action : bulk) {
+                assertEquals(lane, lanes.lane(action));
+            }
+            actions += bulk.size();
+        }
+        assertEquals(5, actions);
+    }
+
+    @Test
+    public void testCollectsActionsWhileARequestIsInFlight() throws Exception {
+        ElasticSearchLanes lanes = lanes(1);
+        lanes.submit(Collections.singletonList(delete("1")), 0);
+        lanes.submit(Collections.singletonList(delete("2")), 0);
+        lanes.submit(Collections.singletonList(delete("3")), 0);
+        assertEquals(1, sent.size());
+        assertFalse(lanes.awaitIdle(1));
+
+        answers.get(0).run();
+        assertEquals(2, sent.size());
+        assertEquals(2, sent.get(1).size());
+        answers.get(1).run();
+        assertTrue(lanes.awaitIdle(1));
+    }
+}
@@ -0,0 +1,133 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.extension.KernelExtensions;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+
+/**
+ * Runs transactions against the {@link FakeElasticSearchServer} and waits until all documents arrived,
+ * to measure the sustained throughput and the recovery from failures without an ElasticSearch server.
+ *
+ * The number of transactions can be raised with {@code -Delasticsearch.load.transactions=100000} for soak runs.
+ */
+public class ElasticSearchLoadTest {
+    private final static Logger logger = Logger.getLogger(ElasticSearchLoadTest.class.getName());
+
+    public static final String LABEL = "Item";
+    public static final String INDEX = "items";
+    public static final int TRANSACTIONS = Integer.getInteger("elasticsearch.load.transactions", 500);
+    public static final int NODES_PER_TRANSACTION = 10;
+    public static final long TIMEOUT = 60000;
+
+    private FakeElasticSearchServer server;
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeElasticSearchServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (db != null) db.shutdown();
+        server.close();
+    }
+
+    private void start(Map<String, String> config) {
+        config.put("elasticsearch.host_name", server.url());
+        config.put("elasticsearch.index_spec", INDEX + ":" + LABEL + "(name,count)");
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(config).newGraphDatabase();
+    }
+
+    private ElasticSearchMetrics metrics() {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(KernelExtensions.class)
+                .resolveDependency(ElasticSearchExtension.class).metrics();
+    }
+
+    private long run(int transactions) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < transactions; i++) {
+            try (Transaction tx = db.beginTx()) {
+                for (int j = 0; j < NODES_PER_TRANSACTION; j++) {
+                    Node node = db.createNode(Label.label(LABEL));
+                    node.setProperty("name", "item " + i + "-" + j);
+                    node.setProperty("count", j);
+                }
+                tx.success();
+            }
+        }
+        int expected = transactions * NODES_PER_TRANSACTION;
+        long deadline = start + TIMEOUT;
+        while (server.count(INDEX) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        logger.info(String.format("%d documents in %d ms, %.0f documents/s, %d bulks, %d failed bulks, %d failed items",
+                server.count(INDEX), millis, server.count(INDEX) * 1000.0 / millis,
+                server.bulks(), server.failedBulks(), server.failedItems()));
+        return millis;
+    }
+
+    @Test
+    public void testSustainedThroughput() throws Exception {
+        start(stringMap("elasticsearch.bulk_flush_interval", "20ms"));
+        run(TRANSACTIONS);
+        assertEquals(TRANSACTIONS * NODES_PER_TRANSACTION, server.count(INDEX));
+        assertEquals(0, server.failedItems());
+        assertTrue(server.bulks() < TRANSACTIONS);
+    }
+
+    @Test
+    public void testRecoversFromFailures() throws Exception {
+        start(stringMap("elasticsearch.bulk_flush_interval", "20ms",
+                "elasticsearch.max_retries", "20",
+                "elasticsearch.retry_delay", "10ms"));
+        server.setLatency(5);
+        server.setItemFailureRate(0.1);
+        server.failNextBulks(3, 503);
+        run(TRANSACTIONS / 5);
+        assertEquals(TRANSACTIONS / 5 * NODES_PER_TRANSACTION, server.count(INDEX));
+        assertEquals(3, server.failedBulks());
+        assertTrue(server.failedItems() > 0);
+        assertTrue(metrics().getRetried() > 0);
+        assertEquals(0, metrics().getDeadLetters());
+    }
+
+    @Test
+    public void testSendsCompressedBulks() throws Exception {
+        start(stringMap("elasticsearch.bulk_flush_interval", "20ms",
+                "elasticsearch.compression", "true"));
+        run(TRANSACTIONS / 5);
+        assertEquals(TRANSACTIONS / 5 * NODES_PER_TRANSACTION, server.count(INDEX));
+        assertEquals(server.bulks(), server.compressedRequests());
+    }
+
+    @Test
+    public void testSendsBulksWithTheHttpTransport() throws Exception {
+        start(stringMap("elasticsearch.bulk_flush_interval", "20ms",
+                "elasticsearch.transport", "http",
+                "elasticsearch.compression", "true",
+                "elasticsearch.max_retries", "20",
+                "elasticsearch.retry_delay", "10ms"));
+        server.setItemFailureRate(0.1);
+        server.failNextBulks(3, 503);
+        run(TRANSACTIONS / 5);
+        assertEquals(TRANSACTIONS / 5 * NODES_PER_TRANSACTION, server.count(INDEX));
+        assertEquals(server.requests(), server.compressedRequests());
+        assertEquals(0, metrics().getDeadLetters());
+    }
+}
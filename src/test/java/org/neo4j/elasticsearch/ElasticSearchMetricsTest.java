@@ -0,0 +1,101 @@
+package org.neo4j.elasticsearch;
+
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.extension.KernelExtensions;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+
+public class ElasticSearchMetricsTest {
+
+    @Test
+    public void testHistogram() throws Exception {
+        ElasticSearchMetrics.Histogram histogram = new ElasticSearchMetrics.Histogram();
+        assertEquals(0, histogram.percentile(0.99));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(50.5, histogram.mean(), 0.001);
+        assertEquals(100, histogram.max());
+        // the 50th value lies in the bucket [32, 63]
+        assertEquals(63, histogram.percentile(0.5));
+        assertEquals(100, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void testCountsBulkResults() throws Exception {
+        RecordingJestClient client = new RecordingJestClient();
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        ElasticSearchEventHandler handler = new ElasticSearchEventHandler(client,
+                new ElasticSearchIndexSettings(ElasticSearchIndexSpecParser.parseIndexSpec("test-index:Label(foo)"), true, true), null);
+        handler.setUseAsyncJest(false);
+        db.registerTransactionEventHandler(handler);
+        try {
+            for (int i = 0; i < 3; i++) {
+                try (Transaction tx = db.beginTx()) {
+                    db.createNode(Label.label("Label")).setProperty("foo", "bar");
+                    tx.success();
+                }
+            }
+            ElasticSearchMetrics metrics = handler.metrics();
+            assertEquals(3, metrics.getTransactions());
+            assertEquals(3, metrics.getBulks());
+            assertEquals(1.0, metrics.getActionsPerTransactionMean(), 0.001);
+            assertEquals(3L, metrics.getSucceededByIndex().get("test-index").longValue());
+            assertTrue(metrics.getBulkBytesMax() > 0);
+        } finally {
+            db.unregisterTransactionEventHandler(handler);
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetricsProcedureAndJmx() throws Exception {
+        GraphDatabaseService db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder()
+                .setConfig(stringMap(
+                        "elasticsearch.host_name", "http://localhost:1",
+                        "elasticsearch.index_spec", "test-index:Label(foo)"))
+                .newGraphDatabase();
+        ObjectName name;
+        try {
+            ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class)
+                    .register(ElasticSearchProcedures.class);
+            try (Transaction tx = db.beginTx()) {
+                db.createNode(Label.label("Other"));
+                tx.success();
+            }
+
+            Map<String, Object> metrics = new HashMap<>();
+            Result result = db.execute("CALL elasticsearch.metrics()");
+            while (result.hasNext()) {
+                Map<String, Object> row = result.next();
+                metrics.put((String) row.get("name"), row.get("value"));
+            }
+            assertTrue(((Number) metrics.get("transactions")).longValue() >= 1);
+            assertEquals(16L, ((Number) metrics.get("in_flight_limit")).longValue());
+
+            name = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(KernelExtensions.class)
+                    .resolveDependency(ElasticSearchExtension.class).metricsName();
+            Object transactions = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Transactions");
+            assertTrue((Long) transactions >= 1);
+        } finally {
+            db.shutdown();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,67 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchOutboxShipperTest {
+
+    private static final String INDEX_1 = "{\"index\":{\"_id\":\"1\",\"_index\":\"test-index\",\"_type\":\"node\"}}\n{\"foo\":\"bar\"}\n";
+    private static final String DELETE_2 = "{\"delete\":{\"_id\":\"2\",\"_index\":\"test-index\",\"_type\":\"node\"}}\n";
+    private static final String INDEX_3 = "{\"index\":{\"_id\":\"3\",\"_index\":\"test-index\",\"_type\":\"node\"}}\n{\"foo\":1}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSplitsBodyIntoActions() throws Exception {
+        List<String> requests = ElasticSearchOutboxShipper.requests(INDEX_1 + DELETE_2 + INDEX_3);
+        assertEquals(3, requests.size());
+        assertEquals(INDEX_1, requests.get(0));
+        assertEquals(DELETE_2, requests.get(1));
+        assertEquals(INDEX_3, requests.get(2));
+    }
+
+    @Test
+    public void testRetriesTemporaryFailuresAndDeadLettersRefusedActions() throws Exception {
+        RecordingJestClient client = new RecordingJestClient();
+        File file = new File(folder.getRoot(), "dead-letters.json");
+        ElasticSearchDeadLetters deadLetters = new ElasticSearchDeadLetters(file);
+        ElasticSearchOutboxShipper shipper = new ElasticSearchOutboxShipper(null, new ElasticSearchJestTransport(client), 0);
+        shipper.setDeadLetters(deadLetters);
+        client.respondOnceWith(200, "{\"took\":1,\"errors\":true,\"items\":[" +
+                "{\"index\":{\"_index\":\"test-index\",\"_type\":\"node\",\"_id\":\"1\",\"status\":201}}," +
+                "{\"delete\":{\"_index\":\"test-index\",\"_type\":\"node\",\"_id\":\"2\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}," +
+                "{\"index\":{\"_index\":\"test-index\",\"_type\":\"node\",\"_id\":\"3\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\"}}}]}");
+
+        assertEquals(DELETE_2, shipper.ship(INDEX_1 + DELETE_2 + INDEX_3));
+        assertNull(shipper.ship(DELETE_2));
+        assertEquals(DELETE_2, client.bodies().get(1));
+        deadLetters.close();
+
+        List<String> letters = Files.readAllLines(file.toPath());
+        assertEquals(1, letters.size());
+        JsonObject letter = new JsonParser().parse(letters.get(0)).getAsJsonObject();
+        assertEquals(INDEX_3, letter.get("request").getAsString());
+        assertTrue(letter.get("error").getAsString().contains("mapper_parsing_exception"));
+    }
+
+    @Test
+    public void testRetriesWholeBodyWhenUnavailable() throws Exception {
+        RecordingJestClient client = new RecordingJestClient();
+        ElasticSearchOutboxShipper shipper = new ElasticSearchOutboxShipper(null, new ElasticSearchJestTransport(client), 0);
+        client.respondOnceWith(503, "{\"error\":\"unavailable\"}");
+        assertEquals(INDEX_1 + DELETE_2, shipper.ship(INDEX_1 + DELETE_2));
+        assertNull(shipper.ship(INDEX_1 + DELETE_2));
+    }
+}
@@ -0,0 +1,136 @@
+package org.neo4j.elasticsearch;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Index;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchOutboxTest {
+
+    public static final String LINES = "{\"index\":{\"_id\":\"1\",\"_index\":\"test-index\",\"_type\":\"node\"}}\n{\"foo\":\"bar\"}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadsAppendedRecords() throws Exception {
+        ElasticSearchOutbox outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        assertNull(outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0));
+
+        outbox.append(LINES);
+        long end = outbox.append(LINES);
+
+        ElasticSearchOutbox.Batch batch = outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0);
+        assertEquals(2, batch.records);
+        assertEquals(LINES + LINES, batch.body);
+        assertEquals(end, batch.end);
+
+        outbox.acknowledge(batch.end);
+        assertNull(outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0));
+        outbox.close();
+    }
+
+    @Test
+    public void testReplaysUnacknowledgedRecordsAfterRestart() throws Exception {
+        ElasticSearchOutbox outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        long first = outbox.append("first\n");
+        outbox.append("second\n");
+        outbox.acknowledge(first);
+        outbox.close();
+
+        outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        outbox.append("third\n");
+        ElasticSearchOutbox.Batch batch = outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0);
+        assertEquals("second\nthird\n", batch.body);
+        outbox.close();
+    }
+
+    @Test
+    public void testRollsAndDeletesSegments() throws Exception {
+        ElasticSearchOutbox outbox = new ElasticSearchOutbox(folder.getRoot(), 1024);
+        for (int i = 0; i < 50; i++) {
+            outbox.append(LINES);
+        }
+        assertTrue(folder.getRoot().list().length > 2);
+
+        ElasticSearchOutbox.Batch batch = outbox.read(outbox.acknowledged(), 2048, 0);
+        assertTrue(batch.records < 50);
+        assertTrue(batch.body.length() <= 2048);
+        int records = batch.records;
+        outbox.acknowledge(batch.end);
+        while ((batch = outbox.read(outbox.acknowledged(), 2048, 0)) != null) {
+            records += batch.records;
+            outbox.acknowledge(batch.end);
+        }
+        assertEquals(50, records);
+        // the current segment and the checkpoint remain
+        assertEquals(2, folder.getRoot().list().length);
+        outbox.close();
+    }
+
+    @Test
+    public void testSkipsCorruptRecords() throws Exception {
+        ElasticSearchOutbox outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        long first = outbox.append("first\n");
+        outbox.append("second\n");
+        outbox.close();
+
+        // damage the second record of the segment
+        File segment = folder.getRoot().listFiles((dir, name) -> name.endsWith(".seg"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(ElasticSearchOutbox.offset(first) + 14);
+            file.write('X');
+        }
+
+        outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        outbox.append("third\n");
+        ElasticSearchOutbox.Batch batch = outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0);
+        assertEquals("first\nthird\n", batch.body);
+        outbox.close();
+    }
+
+    @Test
+    public void testReadsPreparedRecordsOnceCommitted() throws Exception {
+        ElasticSearchOutbox outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        ElasticSearchOutbox.Prepared rolledBack = outbox.prepare(chunks());
+        ElasticSearchOutbox.Prepared committed = outbox.prepare(chunks());
+        outbox.append(LINES);
+        assertNull(outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0));
+
+        rolledBack.rollBack();
+        committed.commit();
+        ElasticSearchOutbox.Batch batch = outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0);
+        assertEquals(2, batch.records);
+        assertEquals(outbox.writePosition(), batch.end);
+        outbox.close();
+    }
+
+    @Test
+    public void testReadsPreparedRecordsFromBeforeRestart() throws Exception {
+        ElasticSearchOutbox outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        outbox.prepare(chunks());
+        outbox.close();
+
+        // the transaction may have committed before Neo4j stopped
+        outbox = new ElasticSearchOutbox(folder.getRoot(), 1024 * 1024);
+        outbox.append(LINES);
+        ElasticSearchOutbox.Batch batch = outbox.read(outbox.acknowledged(), Long.MAX_VALUE, 0);
+        assertEquals(2, batch.records);
+        outbox.close();
+    }
+
+    private static List<List<BulkableAction>> chunks() {
+        BulkableAction action = new Index.Builder("{\"foo\":\"bar\"}").index("test-index").type("node").id("1").build();
+        return Collections.singletonList(Collections.singletonList(action));
+    }
+}
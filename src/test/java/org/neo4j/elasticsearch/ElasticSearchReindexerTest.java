@@ -0,0 +1,128 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
+
+public class ElasticSearchReindexerTest {
+
+    public static final String INDEX = "test-index";
+    public static final String LABEL = "Label";
+    public static final String OTHER_INDEX = "other-index";
+    public static final String OTHER_LABEL = "Other";
+    private GraphDatabaseService db;
+    private RecordingJestClient client;
+    private ElasticSearchEventHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        client = new RecordingJestClient();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        ElasticSearchIndexSettings indexSettings = new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(INDEX + ":" + LABEL + "(foo)"), true, true);
+        handler = new ElasticSearchEventHandler(client, indexSettings, null);
+
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 150; i++) {
+                Node node = i % 5 == 0 ? db.createNode() : db.createNode(Label.label(LABEL));
+                node.setProperty("foo", "bar" + i);
+            }
+            tx.success();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+    }
+
+    @Test
+    public void testReindexesAllIndexedNodes() throws Exception {
+        ElasticSearchReindexer.Stats stats = new ElasticSearchReindexer((GraphDatabaseAPI) db, handler, client, 50, 2, 4).reindex();
+
+        // only the labeled nodes are read
+        assertEquals(120, stats.nodes);
+        assertEquals(120, stats.documents);
+        assertEquals(0, stats.failed);
+        assertEquals(3, client.bodies().size());
+
+        List<JsonObject> actions = client.bulkActions();
+        Set<String> ids = new HashSet<>();
+        for (JsonObject action : actions) {
+            JsonObject index = action.getAsJsonObject("index");
+            assertEquals(INDEX, index.get("_index").getAsString());
+            ids.add(index.get("_id").getAsString());
+        }
+        assertEquals(120, ids.size());
+    }
+
+    @Test
+    public void testReadsNodesWithSeveralIndexedLabelsOnce() throws Exception {
+        String spec = INDEX + ":" + LABEL + "(foo)," + OTHER_INDEX + ":" + OTHER_LABEL + "(foo)";
+        handler = new ElasticSearchEventHandler(client, new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(spec), true, true), null);
+        try (Transaction tx = db.beginTx()) {
+            for (Node node : db.getAllNodes()) {
+                if (node.getId() % 2 == 0) node.addLabel(Label.label(OTHER_LABEL));
+            }
+            tx.success();
+        }
+        ElasticSearchReindexer.Stats stats = new ElasticSearchReindexer((GraphDatabaseAPI) db, handler, client, 50, 2, 4).reindex();
+
+        // 120 with Label, 75 with Other of which 60 also have Label
+        assertEquals(135, stats.nodes);
+        assertEquals(195, stats.documents);
+        assertEquals(0, stats.failed);
+    }
+
+    @Test
+    public void testReadsAllNodesWithIndexForAllNodes() throws Exception {
+        handler = new ElasticSearchEventHandler(client, new ElasticSearchIndexSettings(
+                ElasticSearchIndexSpecParser.parseIndexSpec(INDEX + ":" + LABEL + "(foo)"), true, true), "all-nodes");
+        ElasticSearchReindexer.Stats stats = new ElasticSearchReindexer((GraphDatabaseAPI) db, handler, client, 50, 2, 4).reindex();
+
+        assertEquals(150, stats.nodes);
+        assertEquals(270, stats.documents);
+    }
+
+    @Test
+    public void testReindexProcedure() throws Exception {
+        db.shutdown();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder()
+                .setConfig(stringMap(
+                        "elasticsearch.host_name", "http://localhost:1",
+                        "elasticsearch.index_spec", INDEX + ":" + LABEL + "(foo)"))
+                .newGraphDatabase();
+        ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class)
+                .register(ElasticSearchProcedures.class);
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(Label.label(LABEL)).setProperty("foo", "bar");
+            tx.success();
+        }
+
+        Result result = db.execute("CALL elasticsearch.reindex()");
+        Map<String, Object> row = result.next();
+        assertEquals(1L, row.get("nodes"));
+        // nothing is listening on the configured host
+        assertEquals(1L, row.get("failed"));
+        assertTrue(((Number) row.get("millis")).longValue() >= 0);
+    }
+}
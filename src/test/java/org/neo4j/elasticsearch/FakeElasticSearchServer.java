@@ -0,0 +1,447 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for ElasticSearch that keeps documents in memory, for tests without a server.
+ *
+ * Implements the {@code _bulk}, index, update, delete and get endpoints of ElasticSearch 2, searches by ids,
+ * and creating and deleting indexes. Gzip compressed request bodies are accepted. Everything else is answered with 404, which includes the node discovery of Jest,
+ * so Jest keeps using the configured url.
+ *
+ * There is one shard per index: the routing of a document is kept and returned, deletes and updates with another
+ * routing miss the document as they would on another shard, indexing with another routing replaces it.
+ *
+ * Latency, rejected bulk requests and failing bulk items can be injected, and all requests are counted.
+ */
+public class FakeElasticSearchServer implements AutoCloseable {
+    private final static String REJECTED = "es_rejected_execution_exception";
+
+    private final Gson gson = new Gson();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Document> documents = new ConcurrentHashMap<>();
+    private volatile long latency;
+    private volatile double itemFailureRate;
+    private volatile int bulkFailureStatus;
+    private final AtomicInteger failingBulks = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bulks = new AtomicLong();
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong failedBulks = new AtomicLong();
+    private final AtomicLong failedItems = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    private static class Document {
+        final JsonObject source;
+        final long version;
+        final String routing;
+
+        Document(JsonObject source, long version, String routing) {
+            this.source = source;
+            this.version = version;
+            this.routing = routing;
+        }
+    }
+
+    /**
+     * Starts the server on a free port of the loopback address.
+     */
+    public FakeElasticSearchServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(32, r -> {
+            Thread t = new Thread(r, "fake-elasticsearch");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String url() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Delays every answer by the given time, a latency beyond the read timeout of the client makes requests time out.
+     */
+    public void setLatency(long millis) {
+        this.latency = millis;
+    }
+
+    /**
+     * Fails each item of the following bulk requests with the given probability, as rejected for a full write queue.
+     */
+    public void setItemFailureRate(double rate) {
+        this.itemFailureRate = rate;
+    }
+
+    /**
+     * Answers the next bulk requests as a whole with the given status, e.g. 429 for rejected or 504 for timed out.
+     * The items of these requests are not applied.
+     */
+    public void failNextBulks(int count, int status) {
+        this.bulkFailureStatus = status;
+        failingBulks.set(count);
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long bulks() {
+        return bulks.get();
+    }
+
+    public long items() {
+        return items.get();
+    }
+
+    public long failedBulks() {
+        return failedBulks.get();
+    }
+
+    public long failedItems() {
+        return failedItems.get();
+    }
+
+    public long compressedRequests() {
+        return compressedRequests.get();
+    }
+
+    /**
+     * @return the number of connections that requests were received on
+     */
+    public int connections() {
+        return connections.size();
+    }
+
+    /**
+     * @return the number of documents in the index
+     */
+    public int count(String index) {
+        String prefix = index + "/";
+        int count = 0;
+        for (String key : documents.keySet()) {
+            if (key.startsWith(prefix)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the source of the document, null if there is none
+     */
+    public JsonObject get(String index, String type, String id) {
+        Document document = documents.get(key(index, type, id));
+        return document == null ? null : document.source;
+    }
+
+    /**
+     * @return the routing of the document, null if it has none or there is no document
+     */
+    public String routing(String index, String type, String id) {
+        Document document = documents.get(key(index, type, id));
+        return document == null ? null : document.routing;
+    }
+
+    /**
+     * Stores a document as is, e.g. to make it differ from the graph.
+     */
+    public void put(String index, String type, String id, JsonObject source) {
+        put(index, type, id, source, null);
+    }
+
+    public void put(String index, String type, String id, JsonObject source, String routing) {
+        Document previous = documents.get(key(index, type, id));
+        documents.put(key(index, type, id), new Document(source, previous == null ? 1 : previous.version + 1, routing));
+    }
+
+    public void remove(String index, String type, String id) {
+        documents.remove(key(index, type, id));
+    }
+
+    public void clear() {
+        documents.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static String key(String index, String type, String id) {
+        return index + "/" + type + "/" + id;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            connections.add(exchange.getRemoteAddress());
+            InputStream in = exchange.getRequestBody();
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                compressedRequests.incrementAndGet();
+                in = new GZIPInputStream(in);
+            }
+            String body = read(in);
+            if (latency > 0) TimeUnit.MILLISECONDS.sleep(latency);
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+            String routing = routing(exchange.getRequestURI().getQuery());
+            if (path[path.length - 1].equals("_bulk")) {
+                bulk(exchange, body, path.length > 1 ? path[0] : null, path.length > 2 ? path[1] : null);
+            } else if (path.length == 2 && path[1].equals("_search")) {
+                search(exchange, path[0], gson.fromJson(body, JsonObject.class));
+            } else if (path.length == 4 && path[3].equals("_update") && method.equals("POST")) {
+                JsonObject result = update(path[0], path[1], path[2], gson.fromJson(body, JsonObject.class), routing);
+                respond(exchange, result.get("status").getAsInt(), result);
+            } else if (path.length == 3 && !path[0].startsWith("_") && (method.equals("PUT") || method.equals("POST"))) {
+                JsonObject result = index(path[0], path[1], path[2], gson.fromJson(body, JsonObject.class), routing);
+                respond(exchange, result.get("status").getAsInt(), result);
+            } else if (path.length == 3 && method.equals("DELETE")) {
+                JsonObject result = delete(path[0], path[1], path[2], routing);
+                respond(exchange, result.get("status").getAsInt(), result);
+            } else if (path.length == 3 && method.equals("GET")) {
+                get(exchange, path[0], path[1], path[2]);
+            } else if (path.length == 1 && !path[0].isEmpty() && !path[0].startsWith("_") && (method.equals("PUT") || method.equals("DELETE"))) {
+                if (method.equals("DELETE")) documents.keySet().removeIf(key -> key.startsWith(path[0] + "/"));
+                JsonObject result = new JsonObject();
+                result.addProperty("acknowledged", true);
+                respond(exchange, 200, result);
+            } else {
+                respond(exchange, 404, error("no_handler", "no handler for " + method + " " + exchange.getRequestURI(), 404));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            respond(exchange, 400, error("parse_exception", String.valueOf(e.getMessage()), 400));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void bulk(HttpExchange exchange, String body, String defaultIndex, String defaultType) throws IOException {
+        bulks.incrementAndGet();
+        if (failingBulks.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            failedBulks.incrementAndGet();
+            int status = bulkFailureStatus;
+            respond(exchange, status, error(status == 429 ? REJECTED : "fake_failure", "failed by the fake server", status));
+            return;
+        }
+        JsonArray results = new JsonArray();
+        boolean errors = false;
+        String[] lines = body.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].trim().isEmpty()) continue;
+            items.incrementAndGet();
+            JsonObject line = gson.fromJson(lines[i], JsonObject.class);
+            Map.Entry<String, JsonElement> action = line.entrySet().iterator().next();
+            String operation = action.getKey();
+            JsonObject meta = action.getValue().getAsJsonObject();
+            String index = meta.has("_index") ? meta.get("_index").getAsString() : defaultIndex;
+            String type = meta.has("_type") ? meta.get("_type").getAsString() : defaultType;
+            String id = meta.has("_id") ? meta.get("_id").getAsString() : String.valueOf(System.nanoTime());
+            String routing = meta.has("_routing") ? meta.get("_routing").getAsString() : null;
+            JsonObject source = operation.equals("delete") ? null : gson.fromJson(lines[++i], JsonObject.class);
+            JsonObject result;
+            if (itemFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < itemFailureRate) {
+                result = result(index, type, id, 429, 0);
+                result.add("error", error(REJECTED, "rejected by the fake server", 429).get("error"));
+            } else if (operation.equals("delete")) {
+                result = delete(index, type, id, routing);
+            } else if (operation.equals("update")) {
+                result = update(index, type, id, source, routing);
+            } else {
+                result = index(index, type, id, source, routing);
+            }
+            if (result.has("error")) {
+                failedItems.incrementAndGet();
+                errors = true;
+            }
+            JsonObject item = new JsonObject();
+            item.add(operation, result);
+            results.add(item);
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("took", 1);
+        response.addProperty("errors", errors);
+        response.add("items", results);
+        respond(exchange, 200, response);
+    }
+
+    private JsonObject index(String index, String type, String id, JsonObject source, String routing) {
+        Document previous = documents.get(key(index, type, id));
+        long version = previous == null ? 1 : previous.version + 1;
+        documents.put(key(index, type, id), new Document(source, version, routing));
+        JsonObject result = result(index, type, id, previous == null ? 201 : 200, version);
+        result.addProperty("created", previous == null);
+        return result;
+    }
+
+    private JsonObject update(String index, String type, String id, JsonObject update, String routing) {
+        Document previous = documents.get(key(index, type, id));
+        if (previous == null || !Objects.equals(previous.routing, routing)) {
+            JsonObject result = result(index, type, id, 404, 0);
+            result.add("error", error("document_missing_exception", "[" + type + "][" + id + "]: document missing", 404).get("error"));
+            return result;
+        }
+        JsonObject source = new JsonObject();
+        for (Map.Entry<String, JsonElement> property : previous.source.entrySet()) {
+            source.add(property.getKey(), property.getValue());
+        }
+        JsonObject doc = update.getAsJsonObject("doc");
+        if (doc != null) {
+            for (Map.Entry<String, JsonElement> property : doc.entrySet()) {
+                source.add(property.getKey(), property.getValue());
+            }
+        }
+        documents.put(key(index, type, id), new Document(source, previous.version + 1, routing));
+        return result(index, type, id, 200, previous.version + 1);
+    }
+
+    private JsonObject delete(String index, String type, String id, String routing) {
+        Document document = documents.get(key(index, type, id));
+        Document previous = document != null && Objects.equals(document.routing, routing)
+                ? documents.remove(key(index, type, id)) : null;
+        JsonObject result = result(index, type, id, previous == null ? 404 : 200, previous == null ? 1 : previous.version + 1);
+        result.addProperty("found", previous != null);
+        return result;
+    }
+
+    private void get(HttpExchange exchange, String index, String type, String id) throws IOException {
+        Document document = documents.get(key(index, type, id));
+        JsonObject result = new JsonObject();
+        result.addProperty("_index", index);
+        result.addProperty("_type", type);
+        result.addProperty("_id", id);
+        result.addProperty("found", document != null);
+        if (document != null) {
+            result.addProperty("_version", document.version);
+            result.add("_source", document.source);
+        }
+        respond(exchange, document == null ? 404 : 200, result);
+    }
+
+    /**
+     * Answers an ids query, with the {@code _source} filtered to the requested fields. The index can contain * wildcards.
+     */
+    private void search(HttpExchange exchange, String index, JsonObject search) throws IOException {
+        JsonObject query = search.getAsJsonObject("query");
+        if (query == null || !query.has("ids")) {
+            respond(exchange, 400, error("parse_exception", "only ids queries are supported", 400));
+            return;
+        }
+        Set<String> ids = new HashSet<>();
+        for (JsonElement id : query.getAsJsonObject("ids").getAsJsonArray("values")) {
+            ids.add(id.getAsString());
+        }
+        int size = search.has("size") ? search.get("size").getAsInt() : 10;
+        JsonArray fields = search.has("_source") ? search.getAsJsonArray("_source") : null;
+        JsonArray hits = new JsonArray();
+        int total = 0;
+        for (Map.Entry<String, Document> entry : documents.entrySet()) {
+            String[] key = entry.getKey().split("/", 3);
+            if (!key[0].matches(index.replace(".", "\\.").replace("*", ".*")) || !ids.contains(key[2])) continue;
+            total++;
+            if (hits.size() >= size) continue;
+            JsonObject source = entry.getValue().source;
+            if (fields != null) {
+                JsonObject filtered = new JsonObject();
+                for (JsonElement field : fields) {
+                    if (source.has(field.getAsString())) filtered.add(field.getAsString(), source.get(field.getAsString()));
+                }
+                source = filtered;
+            }
+            JsonObject hit = new JsonObject();
+            hit.addProperty("_index", key[0]);
+            hit.addProperty("_type", key[1]);
+            hit.addProperty("_id", key[2]);
+            if (entry.getValue().routing != null) hit.addProperty("_routing", entry.getValue().routing);
+            hit.addProperty("_score", 1.0);
+            hit.add("_source", source);
+            hits.add(hit);
+        }
+        JsonObject result = new JsonObject();
+        result.addProperty("total", total);
+        result.add("hits", hits);
+        JsonObject response = new JsonObject();
+        response.addProperty("took", 1);
+        response.addProperty("timed_out", false);
+        response.add("hits", result);
+        respond(exchange, 200, response);
+    }
+
+    private static String routing(String query) {
+        if (query == null) return null;
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("routing=")) return parameter.substring("routing=".length());
+        }
+        return null;
+    }
+
+    private static JsonObject result(String index, String type, String id, int status, long version) {
+        JsonObject result = new JsonObject();
+        result.addProperty("_index", index);
+        result.addProperty("_type", type);
+        result.addProperty("_id", id);
+        if (version > 0) result.addProperty("_version", version);
+        result.addProperty("status", status);
+        return result;
+    }
+
+    private static JsonObject error(String type, String reason, int status) {
+        JsonObject error = new JsonObject();
+        error.addProperty("type", type);
+        error.addProperty("reason", reason);
+        JsonObject response = new JsonObject();
+        response.add("error", error);
+        response.addProperty("status", status);
+        return response;
+    }
+
+    private void respond(HttpExchange exchange, int status, JsonObject response) throws IOException {
+        byte[] bytes = gson.toJson(response).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -6,7 +6,10 @@ import java.util.*;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.*;
+import org.neo4j.kernel.configuration.Config;
+
 import static org.junit.Assert.*;
+import static org.neo4j.helpers.collection.MapUtil.stringMap;
 
 public class JestDefaultHttpConfigFactoryTest {
   private static HttpClientConfig subject;
@@ -54,4 +57,29 @@ public class JestDefaultHttpConfigFactoryTest {
 
     assertEquals("https://", subject.getDefaultSchemeForDiscoveredNodes());
   }
+
+  @Test
+  public void itUsesTheConnectionSettings() throws Throwable {
+    subject = JestDefaultHttpConfigFactory.getConfigFor("http://localhost:9200", new Config(stringMap(
+        "elasticsearch.max_connections", "64",
+        "elasticsearch.max_connections_per_route", "32",
+        "elasticsearch.read_timeout", "10s",
+        "elasticsearch.keep_alive", "30s")));
+
+    assertEquals(64, (int) subject.getMaxTotalConnection());
+    assertEquals(32, (int) subject.getDefaultMaxTotalConnectionPerRoute());
+    assertEquals(10000, subject.getReadTimeout());
+    assertEquals(30000, subject.getMaxConnectionIdleTime());
+    assertFalse(subject.isDiscoveryEnabled());
+  }
+
+  @Test
+  public void itUsesAllServers() throws Throwable {
+    subject = JestDefaultHttpConfigFactory.getConfigFor("https://es1:9200, https://es2:9200", new Config(stringMap(
+        "elasticsearch.discovery", "true")));
+
+    assertEquals(new HashSet<String>(Arrays.asList("https://es1:9200", "https://es2:9200")), subject.getServerList());
+    assertTrue(subject.isDiscoveryEnabled());
+    assertEquals("https://", subject.getDefaultSchemeForDiscoveredNodes());
+  }
 }
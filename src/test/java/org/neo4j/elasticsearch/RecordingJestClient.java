@@ -0,0 +1,124 @@
+package org.neo4j.elasticsearch;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Jest client that records the request bodies instead of sending them and answers every request with success.
+ */
+public class RecordingJestClient implements JestClient {
+    private final Gson gson = new Gson();
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<>());
+    private final List<Runnable> held = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean hold;
+    private volatile String response = "{\"took\":1,\"errors\":false,\"items\":[]}";
+    private volatile int status = 200;
+    private final Queue<Object[]> responses = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public <T extends JestResult> T execute(Action<T> action) {
+        bodies.add(action.getData(gson));
+        Object[] next = responses.poll();
+        if (next != null) return action.createNewElasticSearchResult((String) next[1], (Integer) next[0], "OK", gson);
+        return action.createNewElasticSearchResult(response, status, "OK", gson);
+    }
+
+    @Override
+    public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<? super T> handler) {
+        T result = execute(action);
+        if (hold) held.add(() -> handler.completed(result));
+        else handler.completed(result);
+    }
+
+    /**
+     * Answers all following requests with the given response.
+     */
+    public void respondWith(int status, String response) {
+        this.status = status;
+        this.response = response;
+    }
+
+    /**
+     * Answers the next request with the given response, before falling back to the one set by {@link #respondWith}.
+     */
+    public void respondOnceWith(int status, String response) {
+        responses.add(new Object[]{status, response});
+    }
+
+    /**
+     * Holds back the answers to async requests until {@link #releaseHeld()}, so they stay in flight.
+     */
+    public void setHold(boolean hold) {
+        this.hold = hold;
+    }
+
+    public void releaseHeld() {
+        List<Runnable> answers;
+        synchronized (held) {
+            answers = new ArrayList<>(held);
+            held.clear();
+        }
+        answers.forEach(Runnable::run);
+    }
+
+    @Override
+    public void shutdownClient() {
+    }
+
+    @Override
+    public void setServers(Set<String> servers) {
+    }
+
+    public List<String> bodies() {
+        synchronized (bodies) {
+            return new ArrayList<>(bodies);
+        }
+    }
+
+    public void clear() {
+        bodies.clear();
+    }
+
+    /**
+     * The items of all recorded bulk bodies, as pairs of action line and source line, which is null for deletes.
+     */
+    public List<JsonObject[]> bulkItems() {
+        List<JsonObject[]> items = new ArrayList<>();
+        for (String body : bodies()) {
+            String[] lines = body.split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                JsonObject action = gson.fromJson(lines[i], JsonObject.class);
+                JsonObject source = action.has("delete") ? null : gson.fromJson(lines[++i], JsonObject.class);
+                items.add(new JsonObject[]{action, source});
+            }
+        }
+        return items;
+    }
+
+    /**
+     * The action lines of all recorded bulk bodies.
+     */
+    public List<JsonObject> bulkActions() {
+        List<JsonObject> actions = new ArrayList<>();
+        for (String body : bodies()) {
+            for (String line : body.split("\n")) {
+                JsonObject json = gson.fromJson(line, JsonObject.class);
+                if (json.has("index") || json.has("update") || json.has("delete") || json.has("create")) {
+                    actions.add(json);
+                }
+            }
+        }
+        return actions;
+    }
+}